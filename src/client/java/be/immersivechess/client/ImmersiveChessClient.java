@@ -9,12 +9,16 @@ import be.immersivechess.client.render.block.entity.BoardBlockEntityRenderer;
 import be.immersivechess.client.render.block.entity.PieceStandBlockEntityRenderer;
 import be.immersivechess.client.render.block.entity.StructureRenderedBlockEntityRenderer;
 import be.immersivechess.client.render.block.entity.PieceStructureBlockEntityRenderer;
+import be.immersivechess.client.render.model.LodSelector;
 import be.immersivechess.client.render.model.ModelProvider;
+import be.immersivechess.client.render.model.SectionRedraws;
 import be.immersivechess.client.structure.ClientStructureResolver;
+import be.immersivechess.client.structure.ClientStructureSync;
 import be.immersivechess.item.ChessCase;
 import be.immersivechess.item.Items;
 import be.immersivechess.item.PieceContainer;
 import be.immersivechess.screen.ScreenHandlerTypes;
+import be.immersivechess.structure.StructureResolver;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
@@ -23,6 +27,7 @@ import net.fabricmc.fabric.api.client.model.ModelLoadingRegistry;
 import net.fabricmc.fabric.api.itemgroup.v1.FabricItemGroupEntries;
 import net.fabricmc.fabric.api.itemgroup.v1.ItemGroupEvents;
 import net.minecraft.block.Block;
+import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.screen.ingame.HandledScreens;
 import net.minecraft.client.item.ModelPredicateProviderRegistry;
 import net.minecraft.client.render.RenderLayer;
@@ -56,10 +61,20 @@ public class ImmersiveChessClient implements ClientModInitializer {
         BlockEntityRendererFactories.register(BlockEntityTypes.BOARD_BLOCK_ENTITY_TYPE, BoardBlockEntityRenderer::new);
         BlockEntityRendererFactories.register(BlockEntityTypes.PIECE_STAND_BLOCK_ENTITY_TYPE, PieceStandBlockEntityRenderer::new);
         BlockEntityRendererFactories.register(BlockEntityTypes.PIECE_BLOCK_ENTITY_TYPE, StructureRenderedBlockEntityRenderer::new);
+        StructureRenderedBlockEntityRenderer.onInitializeClient();
 
         // Color providers
         ColorProviders.onInitializeClient();
 
+        // Structures of block entities are requested from the server
+        ClientStructureSync.onInitializeClient();
+        // Structures of block entities are decoded off thread and applied on the client thread
+        StructureResolver.setClientExecutor(task -> MinecraftClient.getInstance().execute(task));
+        // Distant pieces are drawn with simplified meshes
+        LodSelector.onInitializeClient();
+        // Model changes of pieces and boards are redrawn once per chunk section each tick
+        SectionRedraws.onInitializeClient();
+
         // Model predicate for opening chess case when interacted with
         ModelPredicateProviderRegistry.register(Items.CHESS_CASE, new Identifier("open"), (itemStack, clientWorld, livingEntity, i) -> {
             if (livingEntity == null || itemStack == null)
@@ -0,0 +1,126 @@
+package be.immersivechess.client.cache;
+
+import be.immersivechess.ImmersiveChess;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.util.Util;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Size capped cache of binary blobs in the game directory, so work can be reused across sessions.
+ * Reads are memory-mapped, writes happen on the io executor. When the cap is exceeded, the least recently used files are
+ * removed.
+ */
+@Environment(EnvType.CLIENT)
+public class DiskCache {
+    private static final String DIRECTORY = ImmersiveChess.MOD_ID + "-cache";
+
+    public static final DiskCache STRUCTURES = new DiskCache("structures", 32L * 1024 * 1024);
+    public static final DiskCache MESHES = new DiskCache("meshes", 128L * 1024 * 1024);
+
+    private final String name;
+    private final long maxBytes;
+
+    @Nullable
+    private Path directory;
+    // -1 until the directory was scanned
+    private long totalBytes = -1;
+
+    private DiskCache(String name, long maxBytes) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+    }
+
+    private Path getDirectory() {
+        if (directory == null)
+            directory = MinecraftClient.getInstance().runDirectory.toPath().resolve(DIRECTORY).resolve(name);
+        return directory;
+    }
+
+    /**
+     * Key should only consist of characters that are valid in a file name.
+     */
+    @Nullable
+    public ByteBuffer read(String key) {
+        Path file = getDirectory().resolve(key);
+        if (!Files.isRegularFile(file)) return null;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // last modified time is used for eviction
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return buffer;
+        } catch (IOException e) {
+            ImmersiveChess.LOGGER.warn("Failed to read " + name + " cache entry " + key, e);
+            return null;
+        }
+    }
+
+    public void write(String key, byte[] data) {
+        Util.getIoWorkerExecutor().execute(() -> writeNow(key, data));
+    }
+
+    private synchronized void writeNow(String key, byte[] data) {
+        try {
+            Path directory = getDirectory();
+            Files.createDirectories(directory);
+            Path file = directory.resolve(key);
+            Path tmp = directory.resolve(key + ".tmp");
+            long previousSize = Files.isRegularFile(file) ? Files.size(file) : 0;
+
+            Files.write(tmp, data);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (totalBytes < 0)
+                totalBytes = computeSize(directory);
+            else
+                totalBytes += data.length - previousSize;
+
+            if (totalBytes > maxBytes)
+                evict(directory);
+        } catch (IOException e) {
+            ImmersiveChess.LOGGER.warn("Failed to write " + name + " cache entry " + key, e);
+        }
+    }
+
+    private static long computeSize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Removes least recently used entries until the cache uses at most three quarters of the allowed size.
+     */
+    private void evict(Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.sorted(Comparator.comparingLong(f -> f.toFile().lastModified())).toList();
+        }
+
+        int removed = 0;
+        for (Path file : files) {
+            if (totalBytes <= maxBytes / 4 * 3) break;
+            long size = Files.size(file);
+            try {
+                Files.delete(file);
+                totalBytes -= size;
+                removed++;
+            } catch (IOException e) {
+                // can still be mapped
+                ImmersiveChess.LOGGER.debug("Could not remove " + name + " cache entry " + file, e);
+            }
+        }
+        ImmersiveChess.LOGGER.debug("Removed " + removed + " entries from " + name + " cache");
+    }
+}
@@ -0,0 +1,155 @@
+package be.immersivechess.client.cache;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.mesh.Mesh;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client wide cache of the meshes of miniature models, bounded by the memory used for their quads.
+ * Entries are ordered by the last time they were used or seen, the least recently visible meshes are evicted first.
+ * Meshes are only valid for the generation of models (and thus texture atlas) they were built for, entries of an older
+ * generation are dropped as soon as a new one is used.
+ * The budget in megabytes can be set with the system property {@value #BUDGET_PROPERTY}.
+ */
+@Environment(EnvType.CLIENT)
+public class MeshCache {
+    private static final String BUDGET_PROPERTY = "immersivechess.meshCacheMegabytes";
+    private static final int DEFAULT_BUDGET_MEGABYTES = 64;
+    // size of a quad in the mesh buffer of the renderer: header and 4 vertices of 8 ints
+    private static final int BYTES_PER_QUAD = (4 + 4 * 8) * Integer.BYTES;
+
+    public static final MeshCache INSTANCE = new MeshCache(Integer.getInteger(BUDGET_PROPERTY, DEFAULT_BUDGET_MEGABYTES) * 1024L * 1024L);
+
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long budget;
+    private long usedBytes;
+    @Nullable
+    private Object generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private MeshCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the cached mesh without building it, counted as a hit or miss.
+     */
+    @Nullable
+    public synchronized Mesh getIfPresent(Object generation, Object key) {
+        useGeneration(generation);
+        Entry entry = entries.get(key);
+        (entry == null ? misses : hits).incrementAndGet();
+        return entry == null ? null : entry.mesh;
+    }
+
+    /**
+     * Same as {@link #getIfPresent}, but not counted in the statistics. For fallbacks that are looked up after a miss.
+     */
+    @Nullable
+    public synchronized Mesh peek(Object generation, Object key) {
+        useGeneration(generation);
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.mesh;
+    }
+
+    /**
+     * Whether meshes of the given generation are still accepted.
+     */
+    public synchronized boolean isCurrent(Object generation) {
+        return generation == this.generation;
+    }
+
+    public void put(Object generation, Object key, Mesh mesh) {
+        Entry entry = new Entry(mesh, estimateSize(mesh));
+        synchronized (this) {
+            // built for models that were replaced in the meantime
+            if (generation != this.generation) return;
+
+            Entry previous = entries.put(key, entry);
+            usedBytes += entry.bytes - (previous == null ? 0 : previous.bytes);
+            evict();
+        }
+    }
+
+    /**
+     * Marks the mesh as recently visible, for meshes that are drawn without being requested again (e.g. in chunk meshes,
+     * see {@link be.immersivechess.client.render.model.LodSelector}).
+     */
+    public synchronized void markVisible(Object key) {
+        entries.get(key);
+    }
+
+    public synchronized void setBudget(long bytes) {
+        budget = bytes;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private void useGeneration(Object generation) {
+        if (generation == this.generation) return;
+        this.generation = generation;
+        clear();
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (usedBytes > budget && iterator.hasNext()) {
+            usedBytes -= iterator.next().bytes;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static long estimateSize(Mesh mesh) {
+        long[] quads = new long[1];
+        mesh.forEach(quad -> quads[0]++);
+        return quads[0] * BYTES_PER_QUAD;
+    }
+
+    private static class Entry {
+        private final Mesh mesh;
+        private final long bytes;
+
+        private Entry(Mesh mesh, long bytes) {
+            this.mesh = mesh;
+            this.bytes = bytes;
+        }
+    }
+}
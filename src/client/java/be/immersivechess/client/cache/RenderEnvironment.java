@@ -0,0 +1,77 @@
+package be.immersivechess.client.cache;
+
+import be.immersivechess.client.mixin.SpriteAtlasTextureAccess;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.RendererAccess;
+import net.fabricmc.loader.api.FabricLoader;
+import net.fabricmc.loader.api.ModContainer;
+import net.minecraft.SharedConstants;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.texture.Sprite;
+import net.minecraft.client.texture.SpriteAtlasTexture;
+import net.minecraft.screen.PlayerScreenHandler;
+import net.minecraft.util.Identifier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fingerprint of everything besides the structure that influences a baked mesh: game and mod versions (including the
+ * renderer), enabled resource packs, render settings and the layout of the block atlas. Meshes store atlas uv
+ * coordinates, so packs edited in place or a different mipmap level invalidate them through the layout.
+ * <p>
+ * The block atlas is only uploaded after models are baked, so call this once resources are loaded.
+ */
+@Environment(EnvType.CLIENT)
+public class RenderEnvironment {
+
+    public static String getFingerprint(Object... extra) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putString(hasher, SharedConstants.getGameVersion().getName());
+        putString(hasher, RendererAccess.INSTANCE.getRenderer().getClass().getName());
+
+        FabricLoader.getInstance().getAllMods().stream()
+                .map(ModContainer::getMetadata)
+                .sorted(Comparator.comparing(m -> m.getId()))
+                .forEach(m -> {
+                    putString(hasher, m.getId());
+                    putString(hasher, m.getVersion().getFriendlyString());
+                });
+
+        MinecraftClient client = MinecraftClient.getInstance();
+        client.getResourcePackManager().getEnabledNames().forEach(name -> putString(hasher, name));
+        hasher.putBoolean(MinecraftClient.isAmbientOcclusionEnabled());
+        // render layer of some blocks (e.g. leaves) depends on the graphics mode
+        putString(hasher, client.options.getGraphicsMode().getValue().name());
+        hasher.putInt(client.options.getMipmapLevels().getValue());
+        putAtlasLayout(hasher, client.getBakedModelManager().getAtlas(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE));
+
+        for (Object o : extra) {
+            putString(hasher, String.valueOf(o));
+        }
+        return hasher.hash().toString();
+    }
+
+    private static void putAtlasLayout(Hasher hasher, SpriteAtlasTexture atlas) {
+        // sprites are stored in a hash map, sort them for a stable order
+        Map<Identifier, Sprite> sprites = new TreeMap<>(((SpriteAtlasTextureAccess) atlas).getSprites());
+        sprites.forEach((id, sprite) -> {
+            putString(hasher, id.toString());
+            hasher.putFloat(sprite.getMinU());
+            hasher.putFloat(sprite.getMaxU());
+            hasher.putFloat(sprite.getMinV());
+            hasher.putFloat(sprite.getMaxV());
+        });
+    }
+
+    private static void putString(Hasher hasher, String s) {
+        hasher.putString(s, StandardCharsets.UTF_8);
+        // separator
+        hasher.putByte((byte) 0);
+    }
+}
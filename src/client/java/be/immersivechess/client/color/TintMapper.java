@@ -1,8 +1,7 @@
 package be.immersivechess.client.color;
 
-import be.immersivechess.ImmersiveChess;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.client.rendering.v1.ColorProviderRegistry;
@@ -11,14 +10,15 @@ import net.minecraft.block.BlockState;
 import net.minecraft.client.color.block.BlockColorProvider;
 import net.minecraft.client.color.world.BiomeColors;
 import net.minecraft.registry.Registries;
-import net.minecraft.util.math.BlockPos;
-import net.minecraft.world.BlockRenderView;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Builds a mapping between tintIndices and colorProviders.
+ * Every color provider gets a range of {@link #CAPACITY} tint indices, so the provider of a tint index is found in an
+ * array at tintIndex / CAPACITY.
  */
 @Environment(EnvType.CLIENT)
 public class TintMapper{
@@ -34,39 +34,51 @@ public class TintMapper{
 
     public final int WATER_COLOR_OFFSET;
 
-    private final BiMap<BlockColorProvider, Integer> BLOCK_PROVIDER_TINT_OFFSETS = HashBiMap.create();
+    // by tint offset / CAPACITY, the first range is for tints used in the block/item itself
+    private final BlockColorProvider[] providers;
+    // 0 for blocks without color provider
+    private final Reference2IntMap<Block> blockTintOffsets = new Reference2IntOpenHashMap<>();
 
     private TintMapper(){
-        // skip first few to accommodate for tints used in the block/item itself
-        int offset = CAPACITY;
+        List<BlockColorProvider> providers = new ArrayList<>();
+        providers.add(null);
+
+        Reference2IntMap<BlockColorProvider> providerOffsets = new Reference2IntOpenHashMap<>();
         for (Block block: Registries.BLOCK){
             BlockColorProvider provider = ColorProviderRegistry.BLOCK.get(block);
-            if (BLOCK_PROVIDER_TINT_OFFSETS.containsKey(provider))
+            if (provider == null) {
+                blockTintOffsets.put(block, 0);
                 continue;
+            }
 
-            BLOCK_PROVIDER_TINT_OFFSETS.put(provider, offset);
-            offset += CAPACITY;
+            if (!providerOffsets.containsKey(provider)) {
+                providerOffsets.put(provider, providers.size() * CAPACITY);
+                providers.add(provider);
+            }
+            blockTintOffsets.put(block, providerOffsets.getInt(provider));
         }
 
-        WATER_COLOR_OFFSET = offset;
-        BLOCK_PROVIDER_TINT_OFFSETS.put(WATER_COLOR_PROVIDER, WATER_COLOR_OFFSET);
+        WATER_COLOR_OFFSET = providers.size() * CAPACITY;
+        providers.add(WATER_COLOR_PROVIDER);
+
+        this.providers = providers.toArray(new BlockColorProvider[0]);
+        blockTintOffsets.defaultReturnValue(-1);
     }
 
     @Nullable
     public BlockColorProvider getBlockColorProvider(int tintIndex){
-        int offset = tintIndex - (tintIndex % CAPACITY);
-        return BLOCK_PROVIDER_TINT_OFFSETS.inverse().getOrDefault(offset, null);
-    }
-
-    public Optional<Integer> getTintOffset(@Nullable BlockColorProvider provider){
-        if (provider == null)
-            return Optional.of(0);
-        return Optional.ofNullable(BLOCK_PROVIDER_TINT_OFFSETS.get(provider));
+        int index = tintIndex / CAPACITY;
+        if (tintIndex < 0 || index >= providers.length)
+            return null;
+        return providers[index];
     }
 
-    public Optional<Integer> getTintOffset(Block block){
-        BlockColorProvider provider = ColorProviderRegistry.BLOCK.get(block);
-        return getTintOffset(provider);
+    /**
+     * Offset to add to the tint indices of the block, or -1 when its color provider was registered after the mapping
+     * was built.
+     */
+    public int getTintOffset(BlockState state){
+        return blockTintOffsets.getInt(state.getBlock());
     }
 
 }
@@ -28,6 +28,9 @@ public class DataGenerator implements DataGeneratorEntrypoint {
 
         // colors to determine white/black
         pack.addProvider(BlockColorGenerator::new);
+
+        // default piece structures at the current data version
+        pack.addProvider(StructureUpgradeProvider::new);
     }
 
 }
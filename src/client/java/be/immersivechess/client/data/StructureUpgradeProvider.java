@@ -0,0 +1,78 @@
+package be.immersivechess.client.data;
+
+import be.immersivechess.ImmersiveChess;
+import be.immersivechess.structure.StructureUpgrader;
+import com.google.common.hash.Hashing;
+import net.fabricmc.fabric.api.datagen.v1.FabricDataOutput;
+import net.minecraft.data.DataOutput;
+import net.minecraft.data.DataProvider;
+import net.minecraft.data.DataWriter;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Writes the default piece structures at the current data version, so the data fixer doesn't run for them when they are
+ * loaded by the game. The source structures are kept in src/main/structures, next to the output directory.
+ */
+class StructureUpgradeProvider implements DataProvider {
+
+    private static final String INPUT_DIRECTORY = "structures";
+    private static final String EXTENSION = ".nbt";
+
+    private final Path inputDirectory;
+    private final DataOutput.PathResolver pathResolver;
+
+    public StructureUpgradeProvider(FabricDataOutput dataOutput) {
+        this.inputDirectory = dataOutput.getPath().resolveSibling(INPUT_DIRECTORY);
+        this.pathResolver = dataOutput.getResolver(DataOutput.OutputType.DATA_PACK, "structures");
+    }
+
+    @Override
+    public String getName() {
+        return "Chess Piece Structures";
+    }
+
+    @Override
+    public CompletableFuture<?> run(DataWriter writer) {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(inputDirectory)) {
+            files = stream.filter(f -> f.getFileName().toString().endsWith(EXTENSION)).sorted().toList();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return CompletableFuture.allOf(files.stream()
+                .map(file -> CompletableFuture.runAsync(() -> upgrade(writer, file), Util.getMainWorkerExecutor()))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    @SuppressWarnings("UnstableApiUsage")
+    private void upgrade(DataWriter writer, Path file) {
+        String name = file.getFileName().toString();
+        Identifier id = new Identifier(ImmersiveChess.MOD_ID, name.substring(0, name.length() - EXTENSION.length()));
+
+        try (InputStream input = Files.newInputStream(file)) {
+            NbtCompound structureNbt = NbtIo.readCompressed(input);
+            if (StructureUpgrader.needsUpgrade(structureNbt))
+                ImmersiveChess.LOGGER.info("Upgrading structure " + id + " to data version " + StructureUpgrader.getCurrentDataVersion());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            NbtIo.writeCompressed(StructureUpgrader.upgrade(structureNbt), bytes);
+            byte[] data = bytes.toByteArray();
+            writer.write(pathResolver.resolve(id, "nbt"), data, Hashing.sha1().hashBytes(data));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to upgrade structure " + id, e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package be.immersivechess.client.mixin;
+
+import be.immersivechess.client.render.block.entity.StructureRenderedBlockEntityRenderer;
+import net.minecraft.client.world.ClientChunkManager;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.LightType;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(ClientChunkManager.class)
+public class MixinClientChunkManager {
+
+    @Inject(method = "onLightUpdate", at = @At("HEAD"))
+    private void immersivechess$onLightUpdate(LightType type, ChunkSectionPos pos, CallbackInfo ci) {
+        StructureRenderedBlockEntityRenderer.onLightUpdate(pos);
+    }
+}
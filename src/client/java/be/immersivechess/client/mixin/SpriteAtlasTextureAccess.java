@@ -0,0 +1,15 @@
+package be.immersivechess.client.mixin;
+
+import net.minecraft.client.texture.Sprite;
+import net.minecraft.client.texture.SpriteAtlasTexture;
+import net.minecraft.util.Identifier;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+import java.util.Map;
+
+@Mixin(SpriteAtlasTexture.class)
+public interface SpriteAtlasTextureAccess {
+    @Accessor
+    Map<Identifier, Sprite> getSprites();
+}
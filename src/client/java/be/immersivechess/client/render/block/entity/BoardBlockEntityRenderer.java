@@ -4,26 +4,41 @@ import be.immersivechess.ImmersiveChess;
 import be.immersivechess.block.entity.BoardBlockEntity;
 import be.immersivechess.item.PieceContainer;
 import be.immersivechess.item.PieceItem;
+import be.immersivechess.logic.MultiblockBoard;
 import be.immersivechess.logic.Piece;
 import be.immersivechess.recipe.StandDyeRecipe;
 import ch.astorm.jchess.core.Color;
+import ch.astorm.jchess.core.Coordinate;
+import com.google.common.collect.MapMaker;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.font.TextRenderer;
 import net.minecraft.client.render.*;
 import net.minecraft.client.render.block.entity.BlockEntityRenderer;
 import net.minecraft.client.render.block.entity.BlockEntityRendererFactory;
+import net.minecraft.client.texture.Sprite;
 import net.minecraft.client.util.SpriteIdentifier;
 import net.minecraft.client.util.math.MatrixStack;
 import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
 import net.minecraft.screen.PlayerScreenHandler;
 import net.minecraft.util.DyeColor;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ColorHelper;
 import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.RotationAxis;
 import org.joml.Matrix3f;
 import org.joml.Matrix4f;
 
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Renders the overlays of a whole board from the block entity of its A1 square, all in one buffer. The other squares
+ * don't render anything themselves.
+ */
 public class BoardBlockEntityRenderer implements BlockEntityRenderer<BoardBlockEntity> {
 
     private final BlockEntityRendererFactory.Context context;
@@ -31,33 +46,101 @@ public class BoardBlockEntityRenderer implements BlockEntityRenderer<BoardBlockE
     private static final SpriteIdentifier SQUARE_SPRITE_ID = new SpriteIdentifier(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE, new Identifier(ImmersiveChess.MOD_ID, "block/highlight_square"));
     private static final SpriteIdentifier ATTACK_SPRITE_ID = new SpriteIdentifier(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE, new Identifier(ImmersiveChess.MOD_ID, "block/highlight_attack"));
     private static final SpriteIdentifier DOT_SPRITE_ID = new SpriteIdentifier(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE, new Identifier(ImmersiveChess.MOD_ID, "block/highlight_dot"));
+    private static final Map<Piece, SpriteIdentifier> ICON_SPRITE_IDS = new EnumMap<>(Piece.class);
+
+    static {
+        for (Piece piece : Piece.values())
+            ICON_SPRITE_IDS.put(piece, new SpriteIdentifier(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE, piece.getIdentifier().withPrefixedPath("item/icon/")));
+    }
+
+    // all overlay sprites are in the block atlas
+    private static final RenderLayer LAYER = RenderLayer.getEntityCutout(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE);
 
     private static final int WHITE_COLOR = ColorHelper.Argb.getArgb(255, 255, 255, 255);
     private static final int RED_COLOR = StandDyeRecipe.dyeColorToColor(DyeColor.RED);
 
+    // the A1 square is rendered as long as any square of the board could be in view
+    private static final int BOARD_DIAGONAL = MathHelper.ceil(MultiblockBoard.BOARD_SIZE * Math.sqrt(2));
+
+    // destinations of the held piece as bitboard of the squares (row * 8 + column) and the game they belong to
+    private static ItemStack destinationStack = ItemStack.EMPTY;
+    private static NbtCompound destinationNbt;
+    private static String destinationGameId;
+    private static long destinationSquares;
+
+    // block entities of the squares of each board by its A1 square, looked up again when missing or removed
+    private final Map<BoardBlockEntity, BoardBlockEntity[]> boards = new MapMaker().weakKeys().makeMap();
+
     public BoardBlockEntityRenderer(BlockEntityRendererFactory.Context context) {
         this.context = context;
     }
 
     @Override
     public int getRenderDistance() {
-        return BlockEntityRenderer.super.getRenderDistance();
+        return BlockEntityRenderer.super.getRenderDistance() + BOARD_DIAGONAL;
+    }
+
+    @Override
+    public boolean rendersOutsideBoundingBox(BoardBlockEntity entity) {
+        // the square can become the anchor after its chunk is built, other squares return right away
+        return true;
     }
 
     @Override
     public void render(BoardBlockEntity entity, float tickDelta, MatrixStack matrices, VertexConsumerProvider vertexConsumers, int light, int overlay) {
-//        if (entity.getSquare() != null)
-//            renderSquare(entity, matrices, vertexConsumers, light);
+        if (!isAnchor(entity) || !entity.hasWorld()) return;
+        Direction whitePlayDirection = entity.getWhitePlayDirection();
+
+        updateDestinations();
+        boolean highlightDestinations = destinationSquares != 0 && destinationGameId.equals(entity.getGameSaveId());
+
+        VertexConsumer consumer = vertexConsumers.getBuffer(LAYER);
+        BoardBlockEntity[] squares = getSquares(entity);
+        for (int i = 0; i < squares.length; i++) {
+            BoardBlockEntity square = squares[i];
+            if (square == null || !Objects.equals(square.getGameSaveId(), entity.getGameSaveId())) continue;
+
+            int row = i / MultiblockBoard.BOARD_SIZE;
+            int column = i % MultiblockBoard.BOARD_SIZE;
+            BlockPos offset = BlockPos.ORIGIN.offset(whitePlayDirection, row).offset(whitePlayDirection.rotateYClockwise(), column);
+
+            matrices.push();
+            matrices.translate(offset.getX(), offset.getY(), offset.getZ());
+
+//            renderSquare(square, matrices, vertexConsumers, light);
+
+            if (highlightDestinations && (destinationSquares & (1L << i)) != 0)
+                renderPossiblePositionHighlight(matrices, consumer);
+
+            Piece piece = square.getPiece();
+            if (piece != null)
+                renderOriginHighlight(matrices, consumer, whitePlayDirection, piece);
 
-        if (shouldHighlightDestinations(entity))
-            renderPossiblePositionHighlight(entity, matrices, vertexConsumers, light);
+            if (square.isInCheck())
+                renderKingUnderAttackHighlight(matrices, consumer);
 
-        Piece piece = entity.getPiece();
-        if (piece != null)
-            renderOriginHighlight(entity, matrices, vertexConsumers, light, piece);
+            matrices.pop();
+        }
+    }
+
+    private static boolean isAnchor(BoardBlockEntity entity) {
+        Coordinate square = entity.getSquare();
+        return square != null && square.getRow() == 0 && square.getColumn() == 0 && entity.getWhitePlayDirection() != null;
+    }
 
-        if (entity.isInCheck())
-            renderKingUnderAttackHighlight(entity, matrices, vertexConsumers, light);
+    /**
+     * Block entities of all squares of the board of the anchor, by index row * 8 + column.
+     */
+    private BoardBlockEntity[] getSquares(BoardBlockEntity anchor) {
+        BoardBlockEntity[] squares = boards.computeIfAbsent(anchor, a -> new BoardBlockEntity[MultiblockBoard.BOARD_SIZE * MultiblockBoard.BOARD_SIZE]);
+        Direction whitePlayDirection = anchor.getWhitePlayDirection();
+        for (int i = 0; i < squares.length; i++) {
+            if (squares[i] != null && !squares[i].isRemoved()) continue;
+
+            BlockPos pos = anchor.getPos().offset(whitePlayDirection, i / MultiblockBoard.BOARD_SIZE).offset(whitePlayDirection.rotateYClockwise(), i % MultiblockBoard.BOARD_SIZE);
+            squares[i] = anchor.getWorld().getBlockEntity(pos) instanceof BoardBlockEntity square ? square : null;
+        }
+        return squares;
     }
 
     /**
@@ -78,52 +161,38 @@ public class BoardBlockEntityRenderer implements BlockEntityRenderer<BoardBlockE
     }
 
     /**
-     * Returns the held itemstack by the player if it belongs to this game. Null otherwise.
+     * Decodes the destinations of the piece the player is holding, only when the held stack changes.
      */
-    private ItemStack getPlayerHoldingIfPieceOfGame(BoardBlockEntity entity) {
-        if (MinecraftClient.getInstance().player == null) return null;
-
-        ItemStack playerHolding = MinecraftClient.getInstance().player.getMainHandStack();
-        if (!(playerHolding.getItem() instanceof PieceItem)) return null;
-
-        String gameId = PieceContainer.getGameSaveId(playerHolding);
-        if (gameId == null || !gameId.equals(entity.getGameSaveId())) return null;
-
-        return playerHolding;
+    private static void updateDestinations() {
+        ItemStack playerHolding = MinecraftClient.getInstance().player == null ? ItemStack.EMPTY : MinecraftClient.getInstance().player.getMainHandStack();
+        // stacks are replaced when their nbt is synced
+        if (playerHolding == destinationStack && playerHolding.getNbt() == destinationNbt) return;
+        destinationStack = playerHolding;
+        destinationNbt = playerHolding.getNbt();
+        destinationSquares = 0;
+
+        if (!(playerHolding.getItem() instanceof PieceItem)) return;
+        destinationGameId = PieceContainer.getGameSaveId(playerHolding);
+        if (destinationGameId == null) return;
+
+        for (Coordinate destination : PieceContainer.getDestinationSquares(playerHolding))
+            destinationSquares |= 1L << (destination.getRow() * MultiblockBoard.BOARD_SIZE + destination.getColumn());
     }
 
-    private boolean shouldHighlightDestinations(BoardBlockEntity entity) {
-        ItemStack playerHolding = getPlayerHoldingIfPieceOfGame(entity);
-        if (playerHolding == null) return false;
-
-        return PieceContainer.getDestinationSquares(playerHolding).contains(entity.getSquare());
-    }
-
-    public void renderPossiblePositionHighlight(BoardBlockEntity entity, MatrixStack matrices, VertexConsumerProvider vertexConsumers, int light) {
-        VertexConsumer consumer = SQUARE_SPRITE_ID.getVertexConsumer(vertexConsumers, RenderLayer::getEntityCutout);
-
-        // determine color of piece
-        ItemStack playerHolding = MinecraftClient.getInstance().player.getMainHandStack();
-        if (!(playerHolding.getItem() instanceof PieceContainer pieceContainer))
-            return;
-
+    private static void renderPossiblePositionHighlight(MatrixStack matrices, VertexConsumer consumer) {
         matrices.push();
         matrices.translate(0, 1, 0);
         Matrix4f positionMatrix = matrices.peek().getPositionMatrix();
         Matrix3f normalMatrix = matrices.peek().getNormalMatrix();
 
         // can have color depend on type, but black is not always visible.
-        renderSquare(positionMatrix, normalMatrix, consumer, 0, 0.001f, 0, 0, 0, WHITE_COLOR);
+        renderSquare(positionMatrix, normalMatrix, consumer, SQUARE_SPRITE_ID.getSprite(), 0, 0.001f, 0, WHITE_COLOR);
 
         matrices.pop();
     }
 
-    public void renderOriginHighlight(BoardBlockEntity entity, MatrixStack matrices, VertexConsumerProvider vertexConsumers, int light, Piece piece) {
-        Identifier iconIdentifier = piece.getIdentifier().withPrefixedPath("item/icon/");
-        SpriteIdentifier spriteId = new SpriteIdentifier(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE, iconIdentifier);
-        VertexConsumer consumer = spriteId.getVertexConsumer(vertexConsumers, RenderLayer::getEntityCutout);
-
-        Direction facing = entity.getWhitePlayDirection();
+    private static void renderOriginHighlight(MatrixStack matrices, VertexConsumer consumer, Direction whitePlayDirection, Piece piece) {
+        Direction facing = whitePlayDirection;
         if (piece.getColor().equals(Color.BLACK))
             facing = facing.getOpposite();
 
@@ -134,41 +203,33 @@ public class BoardBlockEntityRenderer implements BlockEntityRenderer<BoardBlockE
 
         Matrix4f positionMatrix = matrices.peek().getPositionMatrix();
         Matrix3f normalMatrix = matrices.peek().getNormalMatrix();
-        renderSquare(positionMatrix, normalMatrix, consumer, 0, 0.001f, 0, 0, 0);
+        renderSquare(positionMatrix, normalMatrix, consumer, ICON_SPRITE_IDS.get(piece).getSprite(), 0, 0.001f, 0, WHITE_COLOR);
         matrices.pop();
     }
 
-    public void renderKingUnderAttackHighlight(BoardBlockEntity entity, MatrixStack matrices, VertexConsumerProvider vertexConsumers, int light) {
-        VertexConsumer consumer = ATTACK_SPRITE_ID.getVertexConsumer(vertexConsumers, RenderLayer::getEntityCutout);
-
+    private static void renderKingUnderAttackHighlight(MatrixStack matrices, VertexConsumer consumer) {
         matrices.push();
         matrices.translate(0, 1, 0);
         Matrix4f positionMatrix = matrices.peek().getPositionMatrix();
         Matrix3f normalMatrix = matrices.peek().getNormalMatrix();
 
-        renderSquare(positionMatrix, normalMatrix, consumer, 0, 0.001f, 0, 0, 0, RED_COLOR);
+        renderSquare(positionMatrix, normalMatrix, consumer, ATTACK_SPRITE_ID.getSprite(), 0, 0.001f, 0, RED_COLOR);
 
         matrices.pop();
     }
 
-    private static void renderSquare(Matrix4f positionMatrix, Matrix3f normalMatrix, VertexConsumer consumer, float x, float y, float z, float u, float v) {
-        renderSquare(positionMatrix, normalMatrix, consumer, x, y, z, u, v, ColorHelper.Argb.getArgb(255, 255, 255, 255));
-    }
-
-    private static void renderSquare(Matrix4f positionMatrix, Matrix3f normalMatrix, VertexConsumer consumer, float x, float y, float z, float u, float v, int color) {
-        float uv_offset = 1f;
-        vertex(positionMatrix, normalMatrix, consumer, x, y, z, u, v, color);
-        vertex(positionMatrix, normalMatrix, consumer, x, y, z + 1, u, v + uv_offset, color);
-        vertex(positionMatrix, normalMatrix, consumer, x + 1, y, z + 1, u + uv_offset, v + uv_offset, color);
-        vertex(positionMatrix, normalMatrix, consumer, x + 1, y, z, u + uv_offset, v, color);
+    private static void renderSquare(Matrix4f positionMatrix, Matrix3f normalMatrix, VertexConsumer consumer, Sprite sprite, float x, float y, float z, int color) {
+        vertex(positionMatrix, normalMatrix, consumer, x, y, z, sprite.getMinU(), sprite.getMinV(), color);
+        vertex(positionMatrix, normalMatrix, consumer, x, y, z + 1, sprite.getMinU(), sprite.getMaxV(), color);
+        vertex(positionMatrix, normalMatrix, consumer, x + 1, y, z + 1, sprite.getMaxU(), sprite.getMaxV(), color);
+        vertex(positionMatrix, normalMatrix, consumer, x + 1, y, z, sprite.getMaxU(), sprite.getMinV(), color);
     }
 
     /**
-     * @param v the top-most coordinate of the texture region
-     * @param u the left-most coordinate of the texture region
+     * @param v the top-most coordinate of the texture region in the atlas
+     * @param u the left-most coordinate of the texture region in the atlas
      */
     private static void vertex(Matrix4f positionMatrix, Matrix3f normalMatrix, VertexConsumer consumer, float x, float y, float z, float u, float v, int color) {
-        // Note: chaining these operations together turns the VertexConsumer from a SpriteTexturedVertexConsumer into another one.
         consumer.vertex(positionMatrix, x, y, z);
         consumer.color(color);
         consumer.texture(u, v);
@@ -1,37 +1,120 @@
 package be.immersivechess.client.render.block.entity;
 
 import be.immersivechess.block.entity.StructureRenderedBlockEntity;
+import be.immersivechess.client.render.model.LodSelector;
 import be.immersivechess.client.render.model.PieceModel;
+import be.immersivechess.client.render.model.util.BlockEntityBaker;
+import be.immersivechess.structure.StructureResolver;
 import be.immersivechess.world.MiniatureWorld;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.HashCode;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientChunkEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderEvents;
 import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.render.Frustum;
 import net.minecraft.client.render.LightmapTextureManager;
 import net.minecraft.client.render.VertexConsumerProvider;
 import net.minecraft.client.render.block.entity.BlockEntityRenderer;
 import net.minecraft.client.render.block.entity.BlockEntityRendererFactory;
 import net.minecraft.client.util.math.MatrixStack;
+import net.minecraft.client.world.ClientWorld;
 import net.minecraft.state.property.Properties;
+import net.minecraft.structure.StructureTemplate;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.RotationAxis;
+import net.minecraft.util.math.Vec3d;
 import net.minecraft.util.profiler.Profiler;
 import net.minecraft.world.LightType;
+import org.jetbrains.annotations.Nullable;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Dynamic renderer used only for the block entities. Other parts are rendered once in model and added to world mesh.
+ * Dynamic renderer used only for the block entities. Other parts are rendered once in model and added to world mesh,
+ * including the block entities that don't change (see {@link BlockEntityBaker}).
+ * Block entities inside the structure are skipped when they are outside the view, and the whole structure once its
+ * blocks become too small on screen.
  */
 @Environment(EnvType.CLIENT)
 public class StructureRenderedBlockEntityRenderer<E extends StructureRenderedBlockEntity> implements BlockEntityRenderer<E> {
+    // smallest height in pixels of a block in the structure for its block entity to be rendered
+    private static final double MIN_PIXEL_SIZE = 6;
+    private static final double MIN_RENDER_DISTANCE = 8;
+    private static final double MAX_RENDER_DISTANCE = 64;
+
+    // frustum of the frame that is being rendered and the inverse of its view rotation, to find the position of the
+    // block entities relative to the camera
+    @Nullable
+    private static Frustum frustum;
+    private static final Matrix4f inverseView = new Matrix4f();
+    // scratch space of isVisible, only used on the render thread
+    private static final Matrix4f viewMatrix = new Matrix4f();
+    private static final Vector3f center = new Vector3f();
+
+    // number of light updates per chunk section, only counted for sections of loaded chunks that contain miniatures.
+    // Guarded by the class.
+    private static final Long2IntOpenHashMap lightVersions = new Long2IntOpenHashMap();
 
     protected final BlockEntityRendererFactory.Context context;
 
+    private final Map<E, RenderState> renderStates = new MapMaker().weakKeys().makeMap();
+
     public StructureRenderedBlockEntityRenderer(BlockEntityRendererFactory.Context context) {
         this.context = context;
     }
 
+    public static void onInitializeClient() {
+        WorldRenderEvents.AFTER_SETUP.register(worldRenderContext -> {
+            frustum = worldRenderContext.frustum();
+            inverseView.set(worldRenderContext.matrixStack().peek().getPositionMatrix()).invert();
+        });
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> clearLightVersions());
+        ClientChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> removeLightVersions(world, chunk.getPos()));
+    }
+
+    /**
+     * Called by the client chunk manager when the light in a chunk section changed.
+     */
+    public static synchronized void onLightUpdate(ChunkSectionPos pos) {
+        long key = pos.asLong();
+        if (lightVersions.containsKey(key))
+            lightVersions.addTo(key, 1);
+    }
+
+    private static synchronized int getLightVersion(BlockPos pos) {
+        long key = ChunkSectionPos.toLong(pos);
+        if (!lightVersions.containsKey(key))
+            lightVersions.put(key, 0);
+        return lightVersions.get(key);
+    }
+
+    /**
+     * Drops the sections of an unloaded chunk, the miniatures in it are unloaded as well.
+     */
+    private static synchronized void removeLightVersions(ClientWorld world, ChunkPos pos) {
+        if (lightVersions.isEmpty()) return;
+        for (int y = world.getBottomSectionCoord(); y < world.getTopSectionCoord(); y++)
+            lightVersions.remove(ChunkSectionPos.asLong(pos.x, y, pos.z));
+    }
+
+    private static synchronized void clearLightVersions() {
+        lightVersions.clear();
+    }
+
     @Override
     public void render(E entity, float tickDelta, MatrixStack matrices, VertexConsumerProvider vertexConsumers, int light, int overlay) {
         MiniatureWorld miniWorld = entity.getMiniWorld();
@@ -41,37 +124,47 @@ public class StructureRenderedBlockEntityRenderer<E extends StructureRenderedBlo
         Profiler profiler = context.getRenderDispatcher().world.getProfiler();
         profiler.push("miniature_be");
 
+        Direction dir = entity.getCachedState().get(Properties.HORIZONTAL_FACING);
+        RenderState state = renderStates.get(entity);
+        if (state == null || state.miniWorld != miniWorld || state.facing != dir) {
+            state = new RenderState(miniWorld, dir);
+            renderStates.put(entity, state);
+        }
+        if (state.blockEntities.isEmpty()) {
+            profiler.pop();
+            return;
+        }
+
         // Due to emissive rendering, a block light of 15 is always provided to this function iso the actual value.
-        // So we compute it from the world
-        int globalBlockLight = entity.getWorld().getLightLevel(LightType.BLOCK, entity.getPos());
+        // So we get it from the world, only again after the light of its chunk section changed
+        int lightVersion = getLightVersion(entity.getPos());
+        if (lightVersion != state.lightVersion) {
+            state.lightVersion = lightVersion;
+            state.worldBlockLight = entity.getWorld().getLightLevel(LightType.BLOCK, entity.getPos());
+        }
         int globalSkyLight = LightmapTextureManager.getSkyLightCoordinates(light);
-
-        Direction dir = entity.getCachedState().get(Properties.HORIZONTAL_FACING);
-        float rotation = dir.asRotation();
-        rotation += 180;
+        state.updateLight(state.worldBlockLight, globalSkyLight);
 
         matrices.push();
         matrices.scale(PieceModel.SCALE, PieceModel.SCALE, PieceModel.SCALE);
+        matrices.multiply(state.rotation, 4f, 0, 4f);
 
-        Map<BlockPos, BlockEntity> blockEntities = miniWorld.getBlockEntities();
-        for (Map.Entry<BlockPos, BlockEntity> entry : blockEntities.entrySet()) {
-            BlockPos pos = entry.getKey();
-            BlockEntity be = entry.getValue();
+        // static block entities are part of the full detail mesh
+        StructureTemplate structure = entity.getStructure();
+        HashCode fingerprint = structure == null ? null : StructureResolver.getFingerprint(structure);
+        boolean skipBaked = fingerprint != null && LodSelector.getLevel(entity.getPos()) == 0;
 
-            BlockEntityRenderer<BlockEntity> beRenderer = context.getRenderDispatcher().get(be);
+        Vec3d camera = context.getRenderDispatcher().camera.getPos();
+        for (InnerBlockEntity inner : state.blockEntities) {
+            if (skipBaked && BlockEntityBaker.isBaked(fingerprint, inner.pos)) continue;
+            BlockEntityRenderer<BlockEntity> beRenderer = context.getRenderDispatcher().get(inner.blockEntity);
             if (beRenderer == null) continue;
             if (beRenderer instanceof StructureRenderedBlockEntityRenderer) continue;      // no recursive block entities
 
             matrices.push();
-            matrices.multiply(RotationAxis.POSITIVE_Y.rotationDegrees(-rotation), 4f, 0, 4f);
-            matrices.translate(pos.getX(), pos.getY(), pos.getZ());
-
-            int localBlockLight = miniWorld.getLightLevel(LightType.BLOCK, pos);
-            int localSkyLight = miniWorld.getLightLevel(LightType.SKY, pos);
-            // Block light is based on max available. Skylight is propagated further.
-            int localLight = LightmapTextureManager.pack(Math.max(localBlockLight, globalBlockLight), Math.max(0, localSkyLight - 15 + globalSkyLight));
-
-            beRenderer.render(be, tickDelta, matrices, vertexConsumers, localLight, overlay);
+            matrices.translate(inner.pos.getX(), inner.pos.getY(), inner.pos.getZ());
+            if (isVisible(matrices, camera))
+                beRenderer.render(inner.blockEntity, tickDelta, matrices, vertexConsumers, inner.light, overlay);
             matrices.pop();
         }
         matrices.pop();
@@ -85,7 +178,89 @@ public class StructureRenderedBlockEntityRenderer<E extends StructureRenderedBlo
 
     @Override
     public int getRenderDistance() {
-        // reduce render distance, because everything is rendered smaller anyway
-        return 16;
+        return MathHelper.ceil(getAdaptiveRenderDistance());
+    }
+
+    /**
+     * Whether the block at the origin of the matrices is in view. The matrices of subclasses can scale the structure
+     * down further, so the bounds are a bit larger than needed.
+     */
+    private static boolean isVisible(MatrixStack matrices, Vec3d camera) {
+        if (frustum == null)
+            return true;
+        viewMatrix.set(inverseView).mul(matrices.peek().getPositionMatrix()).transformPosition(0.5f, 0.5f, 0.5f, center);
+        // block entities may render a bit outside of their block (e.g. signs)
+        double extent = PieceModel.SCALE;
+        double x = camera.x + center.x;
+        double y = camera.y + center.y;
+        double z = camera.z + center.z;
+        return frustum.isVisible(x - extent, y - extent, z - extent, x + extent, y + extent, z + extent);
+    }
+
+    /**
+     * Distance at which a block in the structure is {@link #MIN_PIXEL_SIZE} pixels high, for the current field of view
+     * and window size. Everything is rendered smaller, so this is a lot closer than for normal block entities.
+     */
+    private static double getAdaptiveRenderDistance() {
+        MinecraftClient client = MinecraftClient.getInstance();
+        double fov = Math.toRadians(client.options.getFov().getValue());
+        int height = client.getWindow().getFramebufferHeight();
+        double distance = PieceModel.SCALE * height / (2 * Math.tan(fov / 2) * MIN_PIXEL_SIZE);
+        return MathHelper.clamp(distance, MIN_RENDER_DISTANCE, MAX_RENDER_DISTANCE);
+    }
+
+    /**
+     * Block entities of the miniature with their light, which only changes with the miniature. It is combined with the
+     * light at the block entity when that changes.
+     */
+    private static class RenderState {
+        private final MiniatureWorld miniWorld;
+        private final Direction facing;
+        private final Quaternionf rotation;
+        private final List<InnerBlockEntity> blockEntities = new ArrayList<>();
+        // light version of the chunk section at which worldBlockLight was read
+        private int lightVersion = -1;
+        private int worldBlockLight;
+        private int globalBlockLight = -1;
+        private int globalSkyLight = -1;
+
+        private RenderState(MiniatureWorld miniWorld, Direction facing) {
+            this.miniWorld = miniWorld;
+            this.facing = facing;
+            this.rotation = RotationAxis.POSITIVE_Y.rotationDegrees(-(facing.asRotation() + 180));
+
+            miniWorld.getBlockEntities().forEach((pos, be) -> {
+                int localBlockLight = miniWorld.getLightLevel(LightType.BLOCK, pos);
+                int localSkyLight = miniWorld.getLightLevel(LightType.SKY, pos);
+                blockEntities.add(new InnerBlockEntity(pos, be, localBlockLight, localSkyLight));
+            });
+        }
+
+        private void updateLight(int globalBlockLight, int globalSkyLight) {
+            if (globalBlockLight == this.globalBlockLight && globalSkyLight == this.globalSkyLight)
+                return;
+            this.globalBlockLight = globalBlockLight;
+            this.globalSkyLight = globalSkyLight;
+
+            for (InnerBlockEntity inner : blockEntities) {
+                // Block light is based on max available. Skylight is propagated further.
+                inner.light = LightmapTextureManager.pack(Math.max(inner.localBlockLight, globalBlockLight), Math.max(0, inner.localSkyLight - 15 + globalSkyLight));
+            }
+        }
+    }
+
+    private static class InnerBlockEntity {
+        private final BlockPos pos;
+        private final BlockEntity blockEntity;
+        private final int localBlockLight;
+        private final int localSkyLight;
+        private int light;
+
+        private InnerBlockEntity(BlockPos pos, BlockEntity blockEntity, int localBlockLight, int localSkyLight) {
+            this.pos = pos;
+            this.blockEntity = blockEntity;
+            this.localBlockLight = localBlockLight;
+            this.localSkyLight = localSkyLight;
+        }
     }
 }
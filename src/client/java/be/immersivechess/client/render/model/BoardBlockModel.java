@@ -2,14 +2,13 @@ package be.immersivechess.client.render.model;
 
 import be.immersivechess.ImmersiveChess;
 import be.immersivechess.block.Blocks;
+import be.immersivechess.client.render.model.util.MaterialHelper;
 import be.immersivechess.client.render.model.util.QuadTransform;
 import ch.astorm.jchess.core.Color;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.renderer.v1.Renderer;
 import net.fabricmc.fabric.api.renderer.v1.RendererAccess;
-import net.fabricmc.fabric.api.renderer.v1.material.BlendMode;
-import net.fabricmc.fabric.api.renderer.v1.material.MaterialFinder;
 import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
 import net.fabricmc.fabric.api.renderer.v1.mesh.Mesh;
 import net.fabricmc.fabric.api.renderer.v1.mesh.MeshBuilder;
@@ -36,9 +35,10 @@ import net.minecraft.world.BlockRenderView;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.stream.Stream;
 
 @Environment(EnvType.CLIENT)
 public class BoardBlockModel implements UnbakedModel {
@@ -48,6 +48,8 @@ public class BoardBlockModel implements UnbakedModel {
             Color.WHITE, new SpriteIdentifier(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE, new Identifier(ImmersiveChess.MOD_ID, "block/board_white"))
     );
 
+    private static final int NO_CULL_FACE = Direction.values().length;
+
     private final Color color;
 
     public BoardBlockModel(Color color) {
@@ -70,29 +72,39 @@ public class BoardBlockModel implements UnbakedModel {
         Sprite sprite = textureGetter.apply(spriteIdentifiers.get(color));
 
         Renderer renderer = RendererAccess.INSTANCE.getRenderer();
-        MeshBuilder builder = renderer.meshBuilder();
-        QuadEmitter emitter = builder.getEmitter();
+        Mesh[] defaultMeshes = new Mesh[NO_CULL_FACE + 1];
 
         for (Direction direction : Direction.values()) {
+            MeshBuilder builder = renderer.meshBuilder();
+            QuadEmitter emitter = builder.getEmitter();
             emitter.square(direction, 0.0f, 0.0f, 1.0f, 1.0f, 0.0f);
             emitter.spriteBake(sprite, MutableQuadView.BAKE_LOCK_UV);
             emitter.color(-1, -1, -1, -1);
             emitter.emit();
+            defaultMeshes[direction.getId()] = builder.build();
         }
+        defaultMeshes[NO_CULL_FACE] = renderer.meshBuilder().build();
 
-        Mesh defaultMesh = builder.build();
-
-        return new BoardBlockBakedModel(sprite, defaultMesh);
+        return new BoardBlockBakedModel(sprite, defaultMeshes);
     }
 
+    /**
+     * Meshes of a board block are split by cull face (index of the direction, or {@link #NO_CULL_FACE}), so faces
+     * against other board blocks can be left out.
+     */
     static class BoardBlockBakedModel implements BakedModel, FabricBakedModel {
+        // fixed seed, so the appearance mesh can be shared by all positions
+        private static final long SEED = 42L;
+
         private final Sprite particles;
 
-        private final Mesh defaultMesh;
+        private final Mesh[] defaultMeshes;
+        // models are baked again when resources reload, which clears this cache
+        private final Map<BlockState, Mesh[]> appearanceMeshes = new ConcurrentHashMap<>();
 
-        private BoardBlockBakedModel(Sprite particles, Mesh defaultMesh) {
+        private BoardBlockBakedModel(Sprite particles, Mesh[] defaultMeshes) {
             this.particles = particles;
-            this.defaultMesh = defaultMesh;
+            this.defaultMeshes = defaultMeshes;
         }
 
         @Override
@@ -100,37 +112,65 @@ public class BoardBlockModel implements UnbakedModel {
             return false;
         }
 
-        private void emitAppearanceState(BlockState appearanceState, QuadEmitter emitter, Random random) {
-            MaterialFinder materialFinder = RendererAccess.INSTANCE.getRenderer().materialFinder();
-            materialFinder.blendMode(appearanceState.isOpaque() ? BlendMode.SOLID : BlendMode.TRANSLUCENT);
-            RenderMaterial material = materialFinder.find();
+        private static Mesh[] createAppearanceMeshes(BlockState appearanceState) {
+            Renderer renderer = RendererAccess.INSTANCE.getRenderer();
+            RenderMaterial material = MaterialHelper.getMaterial(appearanceState);
             BakedModel model = MinecraftClient.getInstance().getBlockRenderManager().getModel(appearanceState);
             QuadTransform tintRemap = new QuadTransform.TintRemap(appearanceState);
+            Random random = Random.create();
 
-            for (Direction direction : Stream.concat(Arrays.stream(Direction.values()), Stream.of((Direction) null)).toList()) {
+            Mesh[] meshes = new Mesh[NO_CULL_FACE + 1];
+            for (int i = 0; i < meshes.length; i++) {
+                Direction direction = i == NO_CULL_FACE ? null : Direction.byId(i);
+                MeshBuilder builder = renderer.meshBuilder();
+                QuadEmitter emitter = builder.getEmitter();
+
+                random.setSeed(SEED);
                 for (BakedQuad quad : model.getQuads(appearanceState, direction, random)) {
                     emitter.fromVanilla(quad, material, direction);
                     tintRemap.transform(emitter);
                     emitter.emit();
                 }
+                meshes[i] = builder.build();
             }
+            return meshes;
         }
 
         @Override
         public void emitBlockQuads(BlockRenderView blockView, BlockState state, BlockPos pos, Supplier<Random> randomSupplier, RenderContext context) {
 //            ImmersiveChess.LOGGER.info("emitting block Quads");
             BlockState appearanceState = getAppearanceBlockState(blockView, pos);
-            if (appearanceState == null || appearanceState.getBlock() == Blocks.BOARD_BLOCK) {
-                context.meshConsumer().accept(defaultMesh);
-                return;
+            Mesh[] meshes = appearanceState == null ? defaultMeshes : appearanceMeshes.computeIfAbsent(appearanceState, BoardBlockBakedModel::createAppearanceMeshes);
+
+            Consumer<Mesh> meshConsumer = context.meshConsumer();
+            BlockPos.Mutable neighbourPos = new BlockPos.Mutable();
+            for (Direction direction : Direction.values()) {
+                if (!isHiddenByBoard(blockView, appearanceState, neighbourPos.set(pos, direction), direction))
+                    meshConsumer.accept(meshes[direction.getId()]);
             }
+            meshConsumer.accept(meshes[NO_CULL_FACE]);
+        }
 
-            emitAppearanceState(appearanceState, context.getEmitter(), randomSupplier.get());
+        /**
+         * Board blocks are not opaque, so faces against other board blocks have to be culled here. Board blocks without
+         * appearance are full opaque cubes.
+         */
+        private boolean isHiddenByBoard(BlockRenderView blockView, @Nullable BlockState appearanceState, BlockPos neighbourPos, Direction direction) {
+            if (blockView.getBlockState(neighbourPos).getBlock() != Blocks.BOARD_BLOCK)
+                return false;
+
+            BlockState neighbourAppearance = getAppearanceBlockState(blockView, neighbourPos);
+            if (neighbourAppearance == null || neighbourAppearance.isOpaqueFullCube(blockView, neighbourPos))
+                return true;
+            return appearanceState != null && appearanceState.isSideInvisible(neighbourAppearance, direction);
         }
 
+        /**
+         * Null when the board block shows its own texture.
+         */
         private @Nullable BlockState getAppearanceBlockState(BlockRenderView blockView, BlockPos blockPos) {
             Object entityData = ((RenderAttachedBlockView) blockView).getBlockEntityRenderAttachment(blockPos);
-            if (entityData instanceof BlockState appearanceBlockState) {
+            if (entityData instanceof BlockState appearanceBlockState && appearanceBlockState.getBlock() != Blocks.BOARD_BLOCK) {
                 return appearanceBlockState;
             }
             return null;
@@ -138,7 +178,8 @@ public class BoardBlockModel implements UnbakedModel {
 
         @Override
         public void emitItemQuads(ItemStack stack, Supplier<Random> randomSupplier, RenderContext context) {
-            context.meshConsumer().accept(defaultMesh);
+            for (Mesh mesh : defaultMeshes)
+                context.meshConsumer().accept(mesh);
         }
 
         @Override
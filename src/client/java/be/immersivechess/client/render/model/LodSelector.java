@@ -0,0 +1,109 @@
+package be.immersivechess.client.render.model;
+
+import be.immersivechess.block.entity.StructureRenderedBlockEntity;
+import be.immersivechess.client.cache.MeshCache;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.structure.StructureTemplate;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Vec3d;
+
+/**
+ * Picks the level of detail of miniature models in the world based on the distance to the camera.
+ * Levels are remembered per block, so the chunk is only redrawn when the camera moves past a threshold by more than a
+ * small margin. This avoids redrawing back and forth when moving around a threshold.
+ * The meshes of the levels in use are kept in the {@link MeshCache} while their chunks are drawn.
+ */
+@Environment(EnvType.CLIENT)
+public class LodSelector {
+    // distance in blocks from which each lower level is used
+    private static final double[] DISTANCES = {12, 32};
+    private static final double HYSTERESIS = 2;
+
+    public static final int LEVELS = DISTANCES.length + 1;
+
+    // level used in the chunk mesh per block position, guarded by the class
+    private static final Long2IntOpenHashMap levels = new Long2IntOpenHashMap();
+
+    public static void onInitializeClient() {
+        ClientTickEvents.END_CLIENT_TICK.register(LodSelector::update);
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> clear());
+    }
+
+    /**
+     * Level to use for the model at the given position, called when the chunk is built.
+     */
+    public static synchronized int getLevel(BlockPos pos) {
+        long key = pos.asLong();
+        if (levels.containsKey(key))
+            return levels.get(key);
+
+        int level = select(getDistance(pos), -1);
+        levels.put(key, level);
+        return level;
+    }
+
+    private static int select(double distance, int current) {
+        int level = 0;
+        for (int i = 0; i < DISTANCES.length; i++) {
+            double threshold = DISTANCES[i];
+            // a known level only changes once the distance is past the threshold by the margin
+            if (current > i)
+                threshold -= HYSTERESIS;
+            else if (current >= 0)
+                threshold += HYSTERESIS;
+
+            if (distance >= threshold)
+                level = i + 1;
+        }
+        return level;
+    }
+
+    private static double getDistance(BlockPos pos) {
+        Vec3d camera = MinecraftClient.getInstance().gameRenderer.getCamera().getPos();
+        return Math.sqrt(pos.getSquaredDistanceFromCenter(camera.x, camera.y, camera.z));
+    }
+
+    private static synchronized void update(MinecraftClient client) {
+        if (levels.isEmpty()) return;
+        if (client.world == null || client.worldRenderer == null) {
+            levels.clear();
+            return;
+        }
+
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+        ObjectIterator<Long2IntMap.Entry> iterator = levels.long2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Long2IntMap.Entry entry = iterator.next();
+            pos.set(entry.getLongKey());
+
+            // removed or unloaded
+            if (!(client.world.getBlockEntity(pos) instanceof StructureRenderedBlockEntity blockEntity)) {
+                iterator.remove();
+                continue;
+            }
+
+            int level = select(getDistance(pos), entry.getIntValue());
+            if (level != entry.getIntValue()) {
+                entry.setValue(level);
+                SectionRedraws.scheduleSection(ChunkSectionPos.toLong(pos));
+            }
+
+            // the chunk mesh holds the level that was selected last
+            StructureTemplate structure = blockEntity.getStructure();
+            if (structure != null)
+                MeshCache.INSTANCE.markVisible(PieceModel.getMeshKey(structure, entry.getIntValue()));
+        }
+    }
+
+    private static synchronized void clear() {
+        levels.clear();
+    }
+}
@@ -0,0 +1,148 @@
+package be.immersivechess.client.render.model;
+
+import be.immersivechess.ImmersiveChess;
+import be.immersivechess.client.cache.MeshCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.mesh.Mesh;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Vec3d;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Builds meshes of miniature models on dedicated threads, so cache misses don't stall chunk rebuilds or item rendering.
+ * Requests closest to the camera are built first, items that are rendered right now go before everything else.
+ * Finished meshes are put in the {@link MeshCache} and the chunk sections that requested them are redrawn once.
+ * Meshes that failed to build are not requested again until the models are reloaded.
+ */
+@Environment(EnvType.CLIENT)
+public class MeshBuildService {
+    public static final MeshBuildService INSTANCE = new MeshBuildService();
+
+    // priority of requests that are visible without a position, e.g. items
+    public static final double PRIORITY_IMMEDIATE = 0;
+
+    private static final int THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 4));
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<>(), new ThreadFactoryBuilder().setNameFormat("ImmersiveChess Mesh Builder %d").setDaemon(true).build());
+
+    // queued or running builds by key
+    private final Map<Object, Task> pending = new HashMap<>();
+    // keys of builds that failed in the generation, guarded by pending
+    @Nullable
+    private Object failedGeneration;
+    private final Set<Object> failed = new HashSet<>();
+
+    private MeshBuildService() {
+    }
+
+    /**
+     * Priority of a request for a block, based on the distance to the camera.
+     */
+    public static double getPriority(BlockPos pos) {
+        Vec3d camera = MinecraftClient.getInstance().gameRenderer.getCamera().getPos();
+        return Math.max(PRIORITY_IMMEDIATE + 1, pos.getSquaredDistance(camera));
+    }
+
+    /**
+     * Requests the mesh to be built, unless it is already being built. When the request has a position, its chunk
+     * section is redrawn once the mesh is in the cache. Ignored when the mesh failed to build before.
+     */
+    public void request(Object generation, Object key, double priority, @Nullable BlockPos pos, Supplier<Mesh> builder) {
+        synchronized (pending) {
+            if (generation == failedGeneration && failed.contains(key))
+                return;
+
+            Task task = pending.get(key);
+            if (task == null) {
+                task = new Task(generation, key, priority, builder);
+                task.addSection(pos);
+                pending.put(key, task);
+                executor.execute(task);
+                return;
+            }
+
+            task.addSection(pos);
+            if (priority < task.priority && executor.getQueue().remove(task)) {
+                // requeue to update its position in the queue
+                task.priority = priority;
+                executor.execute(task);
+            }
+        }
+    }
+
+    private void onBuilt(Task task, boolean success) {
+        LongSet sections;
+        synchronized (pending) {
+            pending.remove(task.key);
+            sections = task.sections;
+            if (!success) {
+                if (task.generation != failedGeneration) {
+                    failedGeneration = task.generation;
+                    failed.clear();
+                }
+                failed.add(task.key);
+            }
+        }
+        // a redraw would only request the failed mesh again
+        if (!success || sections.isEmpty()) return;
+
+        sections.forEach(SectionRedraws::scheduleSection);
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final Object generation;
+        private final Object key;
+        private final Supplier<Mesh> builder;
+        // guarded by pending
+        private final LongSet sections = new LongOpenHashSet();
+        private volatile double priority;
+
+        private Task(Object generation, Object key, double priority, Supplier<Mesh> builder) {
+            this.generation = generation;
+            this.key = key;
+            this.priority = priority;
+            this.builder = builder;
+        }
+
+        private void addSection(@Nullable BlockPos pos) {
+            if (pos != null)
+                sections.add(ChunkSectionPos.toLong(pos));
+        }
+
+        @Override
+        public void run() {
+            boolean success = false;
+            try {
+                // models were reloaded while queued
+                if (MeshCache.INSTANCE.isCurrent(generation))
+                    MeshCache.INSTANCE.put(generation, key, builder.get());
+                success = true;
+            } catch (RuntimeException e) {
+                ImmersiveChess.LOGGER.error("Failed to build mesh " + key, e);
+            } finally {
+                onBuilt(this, success);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return Double.compare(priority, other.priority);
+        }
+    }
+}
@@ -1,38 +1,40 @@
 package be.immersivechess.client.render.model;
 
-import be.immersivechess.ImmersiveChess;
+import be.immersivechess.block.entity.StructureRenderedBlockEntity;
+import be.immersivechess.client.cache.DiskCache;
+import be.immersivechess.client.cache.MeshCache;
+import be.immersivechess.client.cache.RenderEnvironment;
 import be.immersivechess.client.color.TintMapper;
+import be.immersivechess.client.render.model.util.BlockEntityBaker;
 import be.immersivechess.client.render.model.util.EmitterBackedBlockRenderContext;
 import be.immersivechess.client.render.model.util.EmitterBackedVertexConsumer;
+import be.immersivechess.client.render.model.util.GreedyMesher;
+import be.immersivechess.client.render.model.util.LodMeshBuilder;
+import be.immersivechess.client.render.model.util.MaterialHelper;
+import be.immersivechess.client.render.model.util.MeshSerializer;
 import be.immersivechess.client.render.model.util.QuadTransform;
 import be.immersivechess.client.render.model.util.TransformationHelper;
 import be.immersivechess.client.structure.ClientStructureResolver;
 import be.immersivechess.logic.Piece;
 import be.immersivechess.structure.StructureHelper;
+import be.immersivechess.structure.StructureResolver;
 import be.immersivechess.world.MiniatureBlockRenderView;
-import com.google.common.collect.MapMaker;
-import com.mojang.blaze3d.systems.RenderSystem;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.renderer.v1.Renderer;
 import net.fabricmc.fabric.api.renderer.v1.RendererAccess;
-import net.fabricmc.fabric.api.renderer.v1.material.BlendMode;
-import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
 import net.fabricmc.fabric.api.renderer.v1.mesh.Mesh;
 import net.fabricmc.fabric.api.renderer.v1.mesh.MeshBuilder;
-import net.fabricmc.fabric.api.renderer.v1.mesh.MutableQuadView;
 import net.fabricmc.fabric.api.renderer.v1.mesh.QuadEmitter;
 import net.fabricmc.fabric.api.renderer.v1.model.FabricBakedModel;
 import net.fabricmc.fabric.api.renderer.v1.render.RenderContext;
-import net.fabricmc.fabric.api.util.TriState;
 import net.minecraft.block.BlockRenderType;
 import net.minecraft.block.BlockState;
-import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.render.OverlayTexture;
-import net.minecraft.client.render.WorldRenderer;
 import net.minecraft.client.render.block.BlockModels;
-import net.minecraft.client.render.block.entity.BlockEntityRenderer;
 import net.minecraft.client.render.model.*;
 import net.minecraft.client.render.model.json.ModelOverrideList;
 import net.minecraft.client.render.model.json.ModelTransformation;
@@ -45,17 +47,19 @@ import net.minecraft.item.ItemStack;
 import net.minecraft.screen.PlayerScreenHandler;
 import net.minecraft.structure.StructureTemplate;
 import net.minecraft.util.Identifier;
-import net.minecraft.util.math.AffineTransformation;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.util.math.random.Random;
 import net.minecraft.world.BlockRenderView;
 import org.jetbrains.annotations.Nullable;
+import org.joml.Matrix4f;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -90,19 +94,35 @@ public class PieceModel implements UnbakedModel {
         return new BakedPieceModel(piece, sprite, rotationContainer);
     }
 
+    /**
+     * Key of the mesh of a structure in the {@link MeshCache}, for the given level of detail (see {@link LodSelector}).
+     */
+    public static HashCode getMeshKey(StructureTemplate structure, int level) {
+        HashCode fingerprint = StructureResolver.getFingerprint(structure);
+        if (level == 0)
+            return fingerprint;
+        return Hashing.combineOrdered(List.of(fingerprint, HashCode.fromInt(level)));
+    }
+
     static class BakedPieceModel implements BakedModel, FabricBakedModel {
+        // increment when the way meshes are built changes, invalidates meshes cached on disk
+        private static final int MESH_VERSION = 8;
+        private static final long MESH_SEED = 42L;
+
         private final Piece piece;
         private final Sprite particles;
-        private final ModelBakeSettings rotationContainer;
+        // facing of the model, applied when the shared mesh is emitted
+        private final QuadTransform rotationTransform;
+        // models are baked again when resources reload, so this stays valid for the lifetime of the model.
+        // Computed on first use, the block atlas isn't uploaded yet while the model bakes.
+        private volatile String renderFingerprint;
 
         private final ModelTransformation modelTransformation;
 
-        private final Map<StructureTemplate, Mesh> meshCache = new MapMaker().weakKeys().makeMap();
-
         private BakedPieceModel(Piece piece, Sprite particles, ModelBakeSettings rotationContainer) {
             this.piece = piece;
             this.particles = particles;
-            this.rotationContainer = rotationContainer;
+            this.rotationTransform = new QuadTransform.Rotate(rotationContainer.getRotation().getLeftRotation());
             modelTransformation = createModelTransformation();
         }
 
@@ -181,8 +201,8 @@ public class PieceModel implements UnbakedModel {
             if (structure == null)
                 return;
 
-            Mesh mesh = getOrCreateMesh(structure, randomSupplier);
-            mesh.outputTo(renderContext.getEmitter());
+            int level = LodSelector.getLevel(blockPos);
+            emitMesh(getMeshOrPlaceholder(structure, level, MeshBuildService.getPriority(blockPos), blockPos), renderContext);
         }
 
         @Override
@@ -192,8 +212,17 @@ public class PieceModel implements UnbakedModel {
             if (structure == null)
                 return;
 
-            Mesh mesh = getOrCreateMesh(structure, randomSupplier);
+            // items are rendered every frame, so they don't need a redraw. They are always shown in full detail.
+            emitMesh(getMeshOrPlaceholder(structure, 0, MeshBuildService.PRIORITY_IMMEDIATE, null), renderContext);
+        }
+
+        private void emitMesh(@Nullable Mesh mesh, RenderContext renderContext) {
+            if (mesh == null)
+                return;
+
+            renderContext.pushTransform(rotationTransform);
             mesh.outputTo(renderContext.getEmitter());
+            renderContext.popTransform();
         }
 
         @Nullable
@@ -201,6 +230,10 @@ public class PieceModel implements UnbakedModel {
             // Nbt of structure is passed
             Object entityData = blockView.getBlockEntityRenderData(blockPos);
 
+            // default structure until the actual structure is decoded or received
+            if (entityData == StructureRenderedBlockEntity.PLACEHOLDER)
+                return ClientStructureResolver.getDefaultStructure(piece);
+
             // null or unknown type -> return null which is empty structure
             if (!(entityData instanceof StructureTemplate structure))
                 return null;
@@ -212,17 +245,95 @@ public class PieceModel implements UnbakedModel {
             return ClientStructureResolver.getStructure(itemStack);
         }
 
-        private Mesh getOrCreateMesh(StructureTemplate structure, Supplier<Random> randomSupplier) {
-            return meshCache.computeIfAbsent(structure, nbt -> createMesh(nbt, randomSupplier));
+        /**
+         * Meshes are built without rotation and shared by the models of all facings, items and stands (see {@link MeshCache}).
+         * The particle sprite is replaced on every resource reload, so it identifies the generation of models.
+         * Missing meshes are built by the {@link MeshBuildService}. In the meantime another level of detail of the same
+         * structure is used if available, otherwise the mesh of the default piece. Only the requested mesh counts in the
+         * statistics of the cache.
+         */
+        @Nullable
+        private Mesh getMeshOrPlaceholder(StructureTemplate structure, int level, double priority, @Nullable BlockPos pos) {
+            Mesh mesh = getOrRequestMesh(structure, level, priority, pos, false);
+            if (mesh != null)
+                return mesh;
+
+            for (int other = 0; other < LodSelector.LEVELS; other++) {
+                if (other == level) continue;
+                mesh = MeshCache.INSTANCE.peek(particles, getMeshKey(structure, other));
+                if (mesh != null)
+                    return mesh;
+            }
+
+            StructureTemplate defaultStructure = ClientStructureResolver.getDefaultStructure(piece);
+            if (defaultStructure == null || defaultStructure == structure)
+                return null;
+            return getOrRequestMesh(defaultStructure, level, priority, null, true);
+        }
+
+        @Nullable
+        private Mesh getOrRequestMesh(StructureTemplate structure, int level, double priority, @Nullable BlockPos pos, boolean placeholder) {
+            HashCode key = getMeshKey(structure, level);
+            Mesh mesh = placeholder ? MeshCache.INSTANCE.peek(particles, key) : MeshCache.INSTANCE.getIfPresent(particles, key);
+            if (mesh == null)
+                MeshBuildService.INSTANCE.request(particles, key, priority, pos == null ? null : pos.toImmutable(), () -> buildMesh(structure, level));
+            return mesh;
+        }
+
+        /**
+         * Level 0 is the full mesh, every next level halves the resolution of the structure.
+         * Simplified meshes are cheap to build, so they are not cached on disk.
+         */
+        private Mesh buildMesh(StructureTemplate structure, int level) {
+            if (level == 0)
+                return loadOrCreateMesh(structure);
+            return LodMeshBuilder.build(structure, 1 << level, SCALE);
         }
 
-        private Mesh createMesh(StructureTemplate structure, Supplier<Random> randomSupplier) {
+        private String getRenderFingerprint() {
+            String result = renderFingerprint;
+            if (result == null) {
+                result = RenderEnvironment.getFingerprint(MESH_VERSION);
+                renderFingerprint = result;
+            }
+            return result;
+        }
+
+        /**
+         * Cached meshes start with the positions of the block entities that are baked into them.
+         */
+        private Mesh loadOrCreateMesh(StructureTemplate structure) {
+            HashCode fingerprint = StructureResolver.getFingerprint(structure);
+            String key = fingerprint + "-" + getRenderFingerprint();
+            ByteBuffer data = DiskCache.MESHES.read(key);
+            if (data != null) {
+                Set<BlockPos> baked = new HashSet<>();
+                int count = data.getInt();
+                for (int i = 0; i < count; i++)
+                    baked.add(BlockPos.fromLong(data.getLong()));
+                Mesh mesh = MeshSerializer.read(data);
+                if (mesh != null) {
+                    BlockEntityBaker.setBaked(fingerprint, baked);
+                    return mesh;
+                }
+            }
+
+            Mesh mesh = createMesh(structure);
+            Set<BlockPos> baked = BlockEntityBaker.getBaked(fingerprint);
+            byte[] meshData = MeshSerializer.write(mesh);
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + baked.size() * Long.BYTES + meshData.length);
+            buffer.putInt(baked.size());
+            baked.forEach(pos -> buffer.putLong(pos.asLong()));
+            buffer.put(meshData);
+            DiskCache.MESHES.write(key, buffer.array());
+            return mesh;
+        }
+
+        private Mesh createMesh(StructureTemplate structure) {
 //            ImmersiveChess.LOGGER.info("creating new mesh for piece " + piece);
 //            ImmersiveChess.LOGGER.info("cache size " + meshCache.size());
 
-            // Transformations
-            AffineTransformation affineTransformation = rotationContainer.getRotation();
-            QuadTransform rotationTransform = new QuadTransform.Rotate(affineTransformation.getLeftRotation());
+            // Transformations, rotation is applied when emitting
             QuadTransform scaleTransform = new QuadTransform.Scale(SCALE);
 
             // Build view of structure world
@@ -234,49 +345,41 @@ public class PieceModel implements UnbakedModel {
             QuadEmitter emitter = builder.getEmitter();
 
             // Rendering
-            renderBlocks(world, emitter, randomSupplier, rotationTransform, scaleTransform);
-            renderFluids(world, emitter, rotationTransform, scaleTransform);
-//            renderBlockEntities(blockEntities, world, emitter, rotationTransform, scaleTransform);
+            renderBlocks(world, emitter, scaleTransform);
+            renderFluids(world, emitter, scaleTransform);
+            // static block entities become part of the mesh, the others are rendered by the block entity renderer
+            BlockEntityBaker.setBaked(StructureResolver.getFingerprint(structure), BlockEntityBaker.bake(world, emitter, scaleTransform));
 
             return builder.build();
         }
 
-        private void renderBlocks(MiniatureBlockRenderView world, QuadEmitter emitter, Supplier<Random> randomSupplier, QuadTransform rotationTransform, QuadTransform scaleTransform) {
-            Random random = randomSupplier.get();
+        private void renderBlocks(MiniatureBlockRenderView world, QuadEmitter emitter, QuadTransform scaleTransform) {
+            // fixed seed, so the mesh doesn't depend on where it was requested
+            Random random = Random.create(MESH_SEED);
             BlockModels blockModels = MinecraftClient.getInstance().getBakedModelManager().getBlockModels();
 
-            RenderMaterial material = RendererAccess.INSTANCE.getRenderer().materialFinder()
-                    .blendMode(BlendMode.TRANSLUCENT)
-                    .ambientOcclusion(TriState.DEFAULT)
-                    .emissive(false)
-                    .find();
-            QuadTransform materialTransform = new QuadTransform() {
-                @Override
-                public boolean transform(MutableQuadView quad) {
-                    quad.material(material);
-                    return true;
-                }
-            };
-
             EmitterBackedBlockRenderContext renderContext = new EmitterBackedBlockRenderContext(emitter);
+            // takes over the faces that can be merged, emitted after all blocks
+            GreedyMesher mesher = new GreedyMesher(world, Random.create(MESH_SEED));
 
-            renderContext.pushPostTransform(materialTransform);
-            renderContext.pushPostTransform(rotationTransform);
-            renderContext.pushPostTransform(scaleTransform);
-
-            Map<BlockPos, BlockState> blockStates = world.getBlockStates();
-            for (Map.Entry<BlockPos, BlockState> entry : blockStates.entrySet()) {
-                BlockPos pos = entry.getKey();
-                BlockState bs = entry.getValue();
+            // scale and position of the block in one matrix, and its material and tint, updated for every block
+            Matrix4f blockMatrix = new Matrix4f();
+            QuadTransform.Affine positionTransform = new QuadTransform.Affine();
+            QuadTransform.BlockMaterial materialTransform = new QuadTransform.BlockMaterial();
+            MatrixStack matrices = new MatrixStack();
 
-                if (bs.isAir()) continue;
-                if (bs.getRenderType() != BlockRenderType.MODEL) continue;
+            renderContext.pushPostTransform(positionTransform);
+            renderContext.pushPostTransform(mesher);
+            renderContext.pushPostTransform(materialTransform);
 
-                QuadTransform translateTransform = new QuadTransform.Translate(pos.getX(), pos.getY(), pos.getZ());
-                QuadTransform tintTransform = new QuadTransform.TintRemap(bs);
+            world.forEachBlockState((pos, bs) -> {
+                if (bs.isAir()) return;
+                if (bs.getRenderType() != BlockRenderType.MODEL) return;
 
-                renderContext.pushPostTransform(translateTransform);
-                renderContext.pushPostTransform(tintTransform);
+                positionTransform.set(blockMatrix.scaling(SCALE).translate(pos.getX(), pos.getY(), pos.getZ()));
+                // render layer of the block, so only translucent blocks need sorting
+                materialTransform.setBlock(bs);
+                mesher.setBlock(pos, bs);
 
                 // TODO: Could add support for blockState appearances, which may differ from actual block states (facades etc.)
                 //  However, they depend on direction
@@ -285,28 +388,24 @@ public class PieceModel implements UnbakedModel {
                 BakedModel model = blockModels.getModel(bs);
 
                 // Have RenderContext perform most of the rendering, we intercept the result and put it in the emitter.
-                renderContext.render(world, model, bs, pos, new MatrixStack(), null, true, random, 0, OverlayTexture.DEFAULT_UV);
+                renderContext.render(world, model, bs, pos, matrices, null, true, random, 0, OverlayTexture.DEFAULT_UV);
+            });
 
-                renderContext.popPostTransform();
-                renderContext.popPostTransform();
-            }
+            mesher.emit(emitter, scaleTransform);
         }
 
-        private void renderFluids(MiniatureBlockRenderView world, QuadEmitter emitter, QuadTransform rotationTransform, QuadTransform scaleTransform) {
+        private void renderFluids(MiniatureBlockRenderView world, QuadEmitter emitter, QuadTransform scaleTransform) {
             // For fluids
             EmitterBackedVertexConsumer vertexConsumer = new EmitterBackedVertexConsumer(emitter);
-            vertexConsumer.pushPostTransform(rotationTransform);
             vertexConsumer.pushPostTransform(scaleTransform);
 
-            Map<BlockPos, BlockState> blockStates = world.getBlockStates();
-            for (Map.Entry<BlockPos, BlockState> entry : blockStates.entrySet()) {
-                BlockPos pos = entry.getKey();
-                BlockState bs = entry.getValue();
-
+            world.forEachBlockState((pos, bs) -> {
                 // Fluids are rendered by intercepting the quads rendered to a vertexconsumer and putting them in an emitter.
                 FluidState fluidState = bs.getFluidState();
                 if (fluidState.isEmpty())
-                    continue;
+                    return;
+
+                vertexConsumer.pushPostTransform(new QuadTransform.Material(MaterialHelper.getMaterial(fluidState)));
 
                 boolean isWater = fluidState.getFluid() == Fluids.WATER || fluidState.getFluid() == Fluids.FLOWING_WATER;
                 if (isWater)
@@ -320,44 +419,8 @@ public class PieceModel implements UnbakedModel {
 
                 if (isWater)
                     vertexConsumer.popPostTransform();
-            }
-        }
-
-        /**
-         * Rendering block entities statically
-         */
-        private void renderBlockEntities(Map<BlockPos, BlockEntity> blockEntities, BlockRenderView world, QuadEmitter emitter, QuadTransform rotationTransform, QuadTransform scaleTransform) {
-            EmitterBackedVertexConsumer vertexConsumer = new EmitterBackedVertexConsumer(emitter);
-            vertexConsumer.pushPostTransform(rotationTransform);
-            vertexConsumer.pushPostTransform(scaleTransform);
-
-            ImmersiveChess.LOGGER.info("thread: " + RenderSystem.isOnRenderThread());
-
-
-            for (Map.Entry<BlockPos, BlockEntity> entry : blockEntities.entrySet()) {
-                BlockPos pos = entry.getKey();
-                BlockEntity be = entry.getValue();
-
-                BlockEntityRenderer<BlockEntity> beRenderer = MinecraftClient.getInstance().getBlockEntityRenderDispatcher().get(be);
-                if (beRenderer == null)
-                    continue;
-
-                QuadTransform translateTransform = new QuadTransform.Translate(pos.getX(), pos.getY(), pos.getZ());
-                vertexConsumer.pushPostTransform(translateTransform);
-
-                int light = WorldRenderer.getLightmapCoordinates(world, pos);
-
-                beRenderer.render(be, 0, new MatrixStack(), layer -> {
-                    // TODO: execute rendering on render thread
-                    // TODO: figure out start/end drawing calls for correct texture etc.
-
-//                            layer.startDrawing();
-                    return vertexConsumer;
-                }, light, OverlayTexture.DEFAULT_UV);
                 vertexConsumer.popPostTransform();
-            }
+            });
         }
-
-
     }
 }
@@ -0,0 +1,62 @@
+package be.immersivechess.client.render.model;
+
+import be.immersivechess.world.ModelRedraws;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+/**
+ * Chunk sections that have to be rebuilt because models of pieces or board blocks changed. They are collected during a
+ * tick, so every section is rebuilt once, and rebuilt asynchronously at the end of the tick.
+ */
+@Environment(EnvType.CLIENT)
+public class SectionRedraws {
+    // guarded by the class, can be scheduled from mesh build threads
+    private static final LongSet sections = new LongOpenHashSet();
+
+    public static void onInitializeClient() {
+        ModelRedraws.setClientScheduler(SectionRedraws::scheduleBlock);
+        ClientTickEvents.END_CLIENT_TICK.register(SectionRedraws::flush);
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> clear());
+    }
+
+    /**
+     * Schedules the section of the block and the sections next to it, like a block update does, as the faces of
+     * neighbouring blocks can depend on the model.
+     */
+    public static synchronized void scheduleBlock(BlockPos pos) {
+        for (int x = ChunkSectionPos.getSectionCoord(pos.getX() - 1); x <= ChunkSectionPos.getSectionCoord(pos.getX() + 1); x++) {
+            for (int y = ChunkSectionPos.getSectionCoord(pos.getY() - 1); y <= ChunkSectionPos.getSectionCoord(pos.getY() + 1); y++) {
+                for (int z = ChunkSectionPos.getSectionCoord(pos.getZ() - 1); z <= ChunkSectionPos.getSectionCoord(pos.getZ() + 1); z++) {
+                    sections.add(ChunkSectionPos.asLong(x, y, z));
+                }
+            }
+        }
+    }
+
+    public static synchronized void scheduleSection(long section) {
+        sections.add(section);
+    }
+
+    private static void flush(MinecraftClient client) {
+        LongSet scheduled;
+        synchronized (SectionRedraws.class) {
+            if (sections.isEmpty()) return;
+            scheduled = new LongOpenHashSet(sections);
+            sections.clear();
+        }
+        if (client.worldRenderer == null) return;
+
+        scheduled.forEach(section -> client.worldRenderer.scheduleBlockRender(ChunkSectionPos.unpackX(section), ChunkSectionPos.unpackY(section), ChunkSectionPos.unpackZ(section)));
+    }
+
+    private static synchronized void clear() {
+        sections.clear();
+    }
+}
@@ -0,0 +1,363 @@
+package be.immersivechess.client.render.model.util;
+
+import be.immersivechess.client.mixin.SpriteAtlasTextureAccess;
+import be.immersivechess.client.render.block.entity.StructureRenderedBlockEntityRenderer;
+import be.immersivechess.world.MiniatureBlockRenderView;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.Renderer;
+import net.fabricmc.fabric.api.renderer.v1.RendererAccess;
+import net.fabricmc.fabric.api.renderer.v1.material.BlendMode;
+import net.fabricmc.fabric.api.renderer.v1.mesh.Mesh;
+import net.fabricmc.fabric.api.renderer.v1.mesh.MeshBuilder;
+import net.fabricmc.fabric.api.renderer.v1.mesh.MutableQuadView;
+import net.fabricmc.fabric.api.renderer.v1.mesh.QuadEmitter;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.block.entity.BlockEntityType;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.render.OverlayTexture;
+import net.minecraft.client.render.RenderLayer;
+import net.minecraft.client.render.TexturedRenderLayers;
+import net.minecraft.client.render.VertexConsumer;
+import net.minecraft.client.render.VertexConsumerProvider;
+import net.minecraft.client.render.WorldRenderer;
+import net.minecraft.client.render.block.entity.BlockEntityRenderer;
+import net.minecraft.client.texture.MissingSprite;
+import net.minecraft.client.texture.Sprite;
+import net.minecraft.client.texture.SpriteAtlasTexture;
+import net.minecraft.client.util.math.MatrixStack;
+import net.minecraft.screen.PlayerScreenHandler;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Captures the output of block entity renderers inside a miniature into its mesh, so they don't have to be rendered
+ * every frame. A block entity is baked when it draws the same at the start and the end of a tick, i.e. it is not
+ * animated, and when everything it draws can be sampled from the block atlas, which is the only texture of the chunk
+ * mesh. The textures of signs, decorated pots and mob heads are added to the block atlas
+ * (assets/minecraft/atlases/blocks.json, merged with the sources of the vanilla file and other packs), their quads are
+ * moved to those sprites. Only textures of block entities that are baked belong there.
+ * Captured block entities have no world, so types whose renderer reads the world are always rendered live.
+ * Renderers expect to run on the render thread, so capturing happens there while the mesh builder waits.
+ */
+@Environment(EnvType.CLIENT)
+public class BlockEntityBaker {
+    // atlases of block entities whose sprites are also stitched into the block atlas
+    private static final List<Identifier> ENTITY_ATLASES = List.of(
+            TexturedRenderLayers.SIGNS_ATLAS_TEXTURE,
+            TexturedRenderLayers.DECORATED_POT_ATLAS_TEXTURE
+    );
+    // renderers that fall back to a default facing and type without a world (chests also depend on the date)
+    private static final Set<BlockEntityType<?>> LIVE_TYPES = Set.of(
+            BlockEntityType.CHEST,
+            BlockEntityType.TRAPPED_CHEST,
+            BlockEntityType.ENDER_CHEST,
+            BlockEntityType.BED,
+            BlockEntityType.SHULKER_BOX
+    );
+    // textures of mob heads, stitched into the block atlas as a whole. Not the dragon head, its 256x256 texture would
+    // grow the block atlas of every player for a rare block.
+    private static final List<Identifier> SKULL_TEXTURES = List.of(
+            new Identifier("textures/entity/skeleton/skeleton.png"),
+            new Identifier("textures/entity/skeleton/wither_skeleton.png"),
+            new Identifier("textures/entity/zombie/zombie.png"),
+            new Identifier("textures/entity/creeper/creeper.png"),
+            new Identifier("textures/entity/piglin/piglin.png")
+    );
+
+    // render layers that can be baked, with the blend mode they map to in a mesh and where they sample from
+    private static final Map<RenderLayer, LayerSource> LAYERS = new HashMap<>();
+
+    static {
+        putLayer(RenderLayer.getSolid(), BlendMode.SOLID, null);
+        putLayer(RenderLayer.getCutoutMipped(), BlendMode.CUTOUT_MIPPED, null);
+        putLayer(RenderLayer.getCutout(), BlendMode.CUTOUT, null);
+        putLayer(RenderLayer.getTranslucent(), BlendMode.TRANSLUCENT, null);
+        putLayer(TexturedRenderLayers.getEntitySolid(), BlendMode.SOLID, null);
+        putLayer(TexturedRenderLayers.getEntityCutout(), BlendMode.CUTOUT, null);
+        putLayer(TexturedRenderLayers.getItemEntityTranslucentCull(), BlendMode.TRANSLUCENT, null);
+        putLayer(TexturedRenderLayers.getEntityTranslucentCull(), BlendMode.TRANSLUCENT, null);
+        putLayer(RenderLayer.getEntityCutoutNoCull(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE), BlendMode.CUTOUT, null);
+        putLayer(RenderLayer.getEntityTranslucent(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE), BlendMode.TRANSLUCENT, null);
+
+        for (Identifier atlas : ENTITY_ATLASES) {
+            LayerSource.Remap remap = LayerSource.Remap.atlas(atlas);
+            putLayer(RenderLayer.getEntitySolid(atlas), BlendMode.SOLID, remap);
+            putLayer(RenderLayer.getEntityCutout(atlas), BlendMode.CUTOUT, remap);
+            putLayer(RenderLayer.getEntityCutoutNoCull(atlas), BlendMode.CUTOUT, remap);
+            putLayer(RenderLayer.getEntityTranslucent(atlas), BlendMode.TRANSLUCENT, remap);
+        }
+
+        for (Identifier texture : SKULL_TEXTURES) {
+            LayerSource.Remap remap = LayerSource.Remap.texture(texture);
+            putLayer(RenderLayer.getEntityCutoutNoCullZOffset(texture), BlendMode.CUTOUT, remap);
+            putLayer(RenderLayer.getEntityTranslucent(texture), BlendMode.TRANSLUCENT, remap);
+        }
+    }
+
+    private static void putLayer(RenderLayer layer, BlendMode blendMode, @Nullable LayerSource.Remap remap) {
+        LAYERS.put(layer, new LayerSource(blendMode, remap));
+    }
+
+    // positions of the baked block entities by structure fingerprint, only structures that have any
+    private static final Map<HashCode, Set<BlockPos>> BAKED = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the block entity at the position is part of the mesh of the structure and shouldn't be rendered again.
+     */
+    public static boolean isBaked(HashCode structure, BlockPos pos) {
+        Set<BlockPos> positions = BAKED.get(structure);
+        return positions != null && positions.contains(pos);
+    }
+
+    public static Set<BlockPos> getBaked(HashCode structure) {
+        return BAKED.getOrDefault(structure, Collections.emptySet());
+    }
+
+    public static void setBaked(HashCode structure, Set<BlockPos> positions) {
+        if (positions.isEmpty())
+            BAKED.remove(structure);
+        else
+            BAKED.put(structure, Set.copyOf(positions));
+    }
+
+    /**
+     * Emits the static block entities of the world and returns their positions.
+     * Only goes to the render thread when the world has block entities with a renderer.
+     */
+    public static Set<BlockPos> bake(MiniatureBlockRenderView world, QuadEmitter emitter, QuadTransform scaleTransform) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        Map<BlockPos, BlockEntity> candidates = new HashMap<>();
+        world.forEachBlockEntity((pos, be) -> {
+            BlockEntityRenderer<BlockEntity> beRenderer = client.getBlockEntityRenderDispatcher().get(be);
+            if (beRenderer == null) return;
+            if (beRenderer instanceof StructureRenderedBlockEntityRenderer) return;
+            if (LIVE_TYPES.contains(be.getType())) return;
+            candidates.put(pos.toImmutable(), be);
+        });
+        if (candidates.isEmpty())
+            return Collections.emptySet();
+
+        Map<BlockPos, Collection<Mesh>> baked = client.isOnThread()
+                ? capture(world, candidates, scaleTransform)
+                : client.submit(() -> capture(world, candidates, scaleTransform)).join();
+
+        baked.values().forEach(meshes -> meshes.forEach(mesh -> mesh.outputTo(emitter)));
+        return baked.keySet();
+    }
+
+    private static Map<BlockPos, Collection<Mesh>> capture(MiniatureBlockRenderView world, Map<BlockPos, BlockEntity> candidates, QuadTransform scaleTransform) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        Map<Identifier, LayerSource.Remap.Bound> remaps = new HashMap<>();
+        Map<BlockPos, Collection<Mesh>> baked = new HashMap<>();
+        candidates.forEach((pos, be) -> {
+            BlockEntityRenderer<BlockEntity> beRenderer = client.getBlockEntityRenderDispatcher().get(be);
+            if (beRenderer == null) return;
+
+            Capture start = Capture.of(world, pos, be, beRenderer, scaleTransform, remaps, 0);
+            if (start == null || start.meshes.isEmpty()) return;
+            Capture end = Capture.of(world, pos, be, beRenderer, scaleTransform, remaps, 1);
+            if (end == null || !start.hash.equals(end.hash)) return;
+
+            baked.put(pos, start.meshes.values());
+        });
+        return baked;
+    }
+
+    private static class LayerSource {
+        private final BlendMode blendMode;
+        // null when the layer samples the block atlas itself
+        @Nullable
+        private final Remap remap;
+
+        private LayerSource(BlendMode blendMode, @Nullable Remap remap) {
+            this.blendMode = blendMode;
+            this.remap = remap;
+        }
+
+        /**
+         * Where the uvs of a layer point to, which is either an atlas or a single texture.
+         */
+        private static class Remap {
+            private final Identifier texture;
+            private final boolean isAtlas;
+
+            private Remap(Identifier texture, boolean isAtlas) {
+                this.texture = texture;
+                this.isAtlas = isAtlas;
+            }
+
+            static Remap atlas(Identifier atlas) {
+                return new Remap(atlas, true);
+            }
+
+            static Remap texture(Identifier texture) {
+                return new Remap(texture, false);
+            }
+
+            /**
+             * Looks up the sprites once per bake, atlases are replaced when resources reload.
+             */
+            Bound bind() {
+                SpriteAtlasTexture blockAtlas = MinecraftClient.getInstance().getBakedModelManager().getAtlas(PlayerScreenHandler.BLOCK_ATLAS_TEXTURE);
+                if (!isAtlas) {
+                    String path = texture.getPath();
+                    Identifier spriteId = texture.withPath(path.substring("textures/".length(), path.length() - ".png".length()));
+                    return new Bound(blockAtlas, Collections.emptyList(), getBlockSprite(blockAtlas, spriteId));
+                }
+
+                SpriteAtlasTexture atlas = MinecraftClient.getInstance().getBakedModelManager().getAtlas(texture);
+                return new Bound(blockAtlas, new ArrayList<>(((SpriteAtlasTextureAccess) atlas).getSprites().values()), null);
+            }
+
+            @Nullable
+            private static Sprite getBlockSprite(SpriteAtlasTexture blockAtlas, Identifier spriteId) {
+                Sprite sprite = blockAtlas.getSprite(spriteId);
+                return sprite.getContents().getId().equals(MissingSprite.getMissingSpriteId()) ? null : sprite;
+            }
+
+            /**
+             * Moves the uvs of a quad from the sprite in the source texture to the same sprite in the block atlas.
+             */
+            private static class Bound {
+                private final SpriteAtlasTexture blockAtlas;
+                private final List<Sprite> sources;
+                // for a single texture, which covers all uvs
+                @Nullable
+                private final Sprite target;
+
+                private Bound(SpriteAtlasTexture blockAtlas, List<Sprite> sources, @Nullable Sprite target) {
+                    this.blockAtlas = blockAtlas;
+                    this.sources = sources;
+                    this.target = target;
+                }
+
+                boolean remap(MutableQuadView quad) {
+                    float u = 0;
+                    float v = 0;
+                    for (int i = 0; i < 4; i++) {
+                        u += quad.u(i) / 4;
+                        v += quad.v(i) / 4;
+                    }
+
+                    Sprite source = null;
+                    Sprite target = this.target;
+                    if (target == null) {
+                        source = findSprite(u, v);
+                        if (source == null)
+                            return false;
+                        target = getBlockSprite(blockAtlas, source.getContents().getId());
+                        if (target == null)
+                            return false;
+                    }
+
+                    float minU = source == null ? 0 : source.getMinU();
+                    float minV = source == null ? 0 : source.getMinV();
+                    float width = source == null ? 1 : source.getMaxU() - minU;
+                    float height = source == null ? 1 : source.getMaxV() - minV;
+                    for (int i = 0; i < 4; i++) {
+                        quad.uv(i,
+                                target.getMinU() + (quad.u(i) - minU) / width * (target.getMaxU() - target.getMinU()),
+                                target.getMinV() + (quad.v(i) - minV) / height * (target.getMaxV() - target.getMinV()));
+                    }
+                    return true;
+                }
+
+                @Nullable
+                private Sprite findSprite(float u, float v) {
+                    for (Sprite sprite : sources) {
+                        if (u >= sprite.getMinU() && u <= sprite.getMaxU() && v >= sprite.getMinV() && v <= sprite.getMaxV())
+                            return sprite;
+                    }
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Meshes of everything a renderer draws by blend mode, with a hash of all quads to compare captures.
+     */
+    private static class Capture {
+        private final Map<BlendMode, Mesh> meshes;
+        private final HashCode hash;
+
+        private Capture(Map<BlendMode, Mesh> meshes, HashCode hash) {
+            this.meshes = meshes;
+            this.hash = hash;
+        }
+
+        /**
+         * Null when the renderer draws something that can't be baked.
+         */
+        @Nullable
+        static Capture of(MiniatureBlockRenderView world, BlockPos pos, BlockEntity be, BlockEntityRenderer<BlockEntity> beRenderer,
+                          QuadTransform scaleTransform, Map<Identifier, LayerSource.Remap.Bound> remaps, float tickDelta) {
+            Renderer renderer = RendererAccess.INSTANCE.getRenderer();
+            Map<BlendMode, MeshBuilder> builders = new HashMap<>();
+            Map<RenderLayer, VertexConsumer> consumers = new HashMap<>();
+            Hasher hasher = Hashing.murmur3_128().newHasher();
+            boolean[] unsupported = new boolean[1];
+
+            VertexConsumerProvider provider = layer -> consumers.computeIfAbsent(layer, l -> {
+                LayerSource source = LAYERS.get(l);
+                if (source == null) {
+                    unsupported[0] = true;
+                    return new EmitterBackedVertexConsumer(renderer.meshBuilder().getEmitter());
+                }
+
+                MeshBuilder builder = builders.computeIfAbsent(source.blendMode, b -> renderer.meshBuilder());
+                EmitterBackedVertexConsumer vertexConsumer = new EmitterBackedVertexConsumer(builder.getEmitter());
+                vertexConsumer.pushPostTransform(quad -> hash(hasher, quad, source.blendMode));
+                vertexConsumer.pushPostTransform(scaleTransform);
+                vertexConsumer.pushPostTransform(new QuadTransform.Material(MaterialHelper.getMaterial(source.blendMode)));
+                vertexConsumer.pushPostTransform(new QuadTransform.Translate(pos.getX(), pos.getY(), pos.getZ()));
+                if (source.remap != null) {
+                    LayerSource.Remap.Bound remap = remaps.computeIfAbsent(source.remap.texture, t -> source.remap.bind());
+                    vertexConsumer.pushPostTransform(quad -> {
+                        if (!remap.remap(quad))
+                            unsupported[0] = true;
+                        return true;
+                    });
+                }
+                return vertexConsumer;
+            });
+
+            try {
+                beRenderer.render(be, tickDelta, new MatrixStack(), provider, WorldRenderer.getLightmapCoordinates(world, pos), OverlayTexture.DEFAULT_UV);
+            } catch (RuntimeException e) {
+                // renderers that need a real world, these are rendered every frame in the miniature world instead
+                return null;
+            }
+            if (unsupported[0])
+                return null;
+
+            Map<BlendMode, Mesh> meshes = new HashMap<>();
+            builders.forEach((blendMode, builder) -> meshes.put(blendMode, builder.build()));
+            return new Capture(meshes, hasher.hash());
+        }
+
+        private static boolean hash(Hasher hasher, MutableQuadView quad, BlendMode blendMode) {
+            hasher.putInt(blendMode.ordinal());
+            for (int i = 0; i < 4; i++) {
+                hasher.putFloat(quad.x(i)).putFloat(quad.y(i)).putFloat(quad.z(i));
+                hasher.putFloat(quad.u(i)).putFloat(quad.v(i));
+                hasher.putInt(quad.color(i)).putInt(quad.lightmap(i));
+            }
+            return true;
+        }
+    }
+}
@@ -35,9 +35,9 @@ public class EmitterBackedBlockRenderContext extends BlockRenderContext implemen
 
         // We only want to transform after most of the rendering
         // postTransform is our own transform stack. Default transform function needs to not do anything.
-        postTransform(emitter);
-
-        emitter.emit();
+        // Quads can be dropped or taken over by a transform (e.g. GreedyMesher).
+        if (postTransform(emitter))
+            emitter.emit();
     }
 
 }
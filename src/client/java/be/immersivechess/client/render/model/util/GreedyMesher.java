@@ -0,0 +1,345 @@
+package be.immersivechess.client.render.model.util;
+
+import be.immersivechess.client.mixin.SpriteContentsAccess;
+import com.google.common.collect.MapMaker;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
+import net.fabricmc.fabric.api.renderer.v1.mesh.MutableQuadView;
+import net.fabricmc.fabric.api.renderer.v1.mesh.QuadEmitter;
+import net.fabricmc.fabric.api.renderer.v1.model.FabricBakedModel;
+import net.fabricmc.fabric.api.renderer.v1.render.RenderContext;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.render.block.BlockModels;
+import net.minecraft.client.render.model.BakedModel;
+import net.minecraft.client.render.model.BakedQuad;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.client.texture.Sprite;
+import net.minecraft.client.texture.SpriteContents;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.random.Random;
+import net.minecraft.world.BlockRenderView;
+import org.jetbrains.annotations.Nullable;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Transform that merges the faces of blocks in a miniature into larger quads, pushed on the post transform stack for
+ * every block (see {@link #setBlock}).
+ * Quads that cover a full side of a block are dropped when the neighbour on that side is an opaque full cube. Of the
+ * remaining ones, quads with a single coloured sprite and flat shading are collected and merged with equal adjacent
+ * faces in {@link #emit}. Other quads, such as those of non-cube models, pass through unchanged.
+ * Textured sprites (stone, planks, logs, ...) are not merged: a merged quad would have to repeat the sprite per block,
+ * but uvs outside of a sprite sample its neighbours in the atlas and chunk meshes have no tiling material. Faces of
+ * those blocks only benefit from the culling of hidden faces.
+ */
+@Environment(EnvType.CLIENT)
+public class GreedyMesher extends QuadTransform {
+    // largest difference of a colour channel between pixels of a sprite that may be stretched over merged faces
+    private static final int MAX_SPRITE_DEVIATION = 12;
+    private static final float EPSILON = 1e-4f;
+
+    private static final Map<Sprite, Boolean> UNIFORM_SPRITES = new MapMaker().weakKeys().makeMap();
+
+    private final BlockRenderView world;
+    private final Random random;
+    private final BlockModels blockModels = MinecraftClient.getInstance().getBakedModelManager().getBlockModels();
+
+    // sprite of the single quad on each side of the model, if there is one
+    private final Map<BlockState, Sprite[]> sideSprites = new HashMap<>();
+    private final Map<Direction, Map<BlockPos, Face>> faces = new EnumMap<>(Direction.class);
+
+    private BlockPos pos;
+    private BlockState state;
+
+    public GreedyMesher(BlockRenderView world, Random random) {
+        this.world = world;
+        this.random = random;
+        for (Direction direction : Direction.values()) {
+            faces.put(direction, new HashMap<>());
+        }
+    }
+
+    /**
+     * Block of which the quads are transformed next. Quads are expected in the coordinates of the block.
+     */
+    public void setBlock(BlockPos pos, BlockState state) {
+        this.pos = pos.toImmutable();
+        this.state = state;
+    }
+
+    @Override
+    public boolean transform(MutableQuadView quad) {
+        Direction direction = getFullSide(quad);
+        if (direction == null)
+            return true;
+
+        // hidden behind the neighbouring block
+        BlockPos neighbour = pos.offset(direction);
+        if (world.getBlockState(neighbour).isOpaqueFullCube(world, neighbour))
+            return false;
+
+        Sprite sprite = sideSprites.computeIfAbsent(state, this::getSideSprites)[direction.getId()];
+        if (sprite == null || !isUniform(sprite) || !hasFlatShading(quad))
+            return true;
+
+        faces.get(direction).put(pos, new Face(sprite, quad.material(), quad.colorIndex(), quad.color(0), quad.lightmap(0)));
+        return false;
+    }
+
+    /**
+     * Emits the collected faces, merged into rectangles. The transform is applied to each quad before it is emitted.
+     *
+     * @return number of emitted quads
+     */
+    public int emit(QuadEmitter emitter, RenderContext.QuadTransform transform) {
+        List<BlockPos> positions = new ArrayList<>();
+        faces.values().forEach(map -> positions.addAll(map.keySet()));
+        Optional<BlockBox> bounds = BlockBox.encompassPositions(positions);
+        if (bounds.isEmpty())
+            return 0;
+
+        BlockBox box = bounds.get();
+        int[] min = {box.getMinX(), box.getMinY(), box.getMinZ()};
+        int[] size = {box.getBlockCountX(), box.getBlockCountY(), box.getBlockCountZ()};
+
+        int count = 0;
+        for (Direction direction : Direction.values()) {
+            Map<BlockPos, Face> collected = faces.get(direction);
+            if (collected.isEmpty()) continue;
+
+            int axis = direction.getAxis().ordinal();
+            int uAxis = (axis + 1) % 3;
+            int vAxis = (axis + 2) % 3;
+            int width = size[uAxis];
+            int height = size[vAxis];
+
+            Face[] mask = new Face[width * height];
+            int[] p = new int[3];
+            for (int slice = 0; slice < size[axis]; slice++) {
+                boolean empty = true;
+                for (int v = 0; v < height; v++) {
+                    for (int u = 0; u < width; u++) {
+                        p[axis] = min[axis] + slice;
+                        p[uAxis] = min[uAxis] + u;
+                        p[vAxis] = min[vAxis] + v;
+                        Face face = collected.get(new BlockPos(p[0], p[1], p[2]));
+                        mask[u + v * width] = face;
+                        empty &= face == null;
+                    }
+                }
+                if (empty) continue;
+
+                float plane = min[axis] + slice + (direction.getDirection() == Direction.AxisDirection.POSITIVE ? 1 : 0);
+                count += mergeAndEmit(mask, width, height, plane, min[uAxis], min[vAxis], direction, emitter, transform);
+            }
+        }
+        return count;
+    }
+
+    private int mergeAndEmit(Face[] mask, int width, int height, float plane, int minU, int minV, Direction direction, QuadEmitter emitter, RenderContext.QuadTransform transform) {
+        int count = 0;
+        for (int v = 0; v < height; v++) {
+            for (int u = 0; u < width; u++) {
+                Face face = mask[u + v * width];
+                if (face == null) continue;
+
+                int w = 1;
+                while (u + w < width && face.equals(mask[u + w + v * width])) w++;
+
+                int h = 1;
+                expand:
+                while (v + h < height) {
+                    for (int k = 0; k < w; k++) {
+                        if (!face.equals(mask[u + k + (v + h) * width])) break expand;
+                    }
+                    h++;
+                }
+
+                for (int j = 0; j < h; j++) {
+                    for (int k = 0; k < w; k++) {
+                        mask[u + k + (v + j) * width] = null;
+                    }
+                }
+
+                emitQuad(face, plane, minU + u, minV + v, minU + u + w, minV + v + h, direction, emitter, transform);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void emitQuad(Face face, float plane, int u0, int v0, int u1, int v1, Direction direction, QuadEmitter emitter, RenderContext.QuadTransform transform) {
+        int axis = direction.getAxis().ordinal();
+        int uAxis = (axis + 1) % 3;
+        int vAxis = (axis + 2) % 3;
+
+        int[][] corners = {{u0, v0}, {u0, v1}, {u1, v1}, {u1, v0}};
+        Vector3f[] positions = new Vector3f[4];
+        for (int i = 0; i < 4; i++) {
+            float[] p = new float[3];
+            p[axis] = plane;
+            p[uAxis] = corners[i][0];
+            p[vAxis] = corners[i][1];
+            positions[i] = new Vector3f(p[0], p[1], p[2]);
+        }
+
+        // vertices are counterclockwise when looking at the face from outside
+        Vector3f normal = new Vector3f(positions[2]).sub(positions[0]).cross(new Vector3f(positions[3]).sub(positions[1]));
+        boolean reverse = normal.dot(direction.getOffsetX(), direction.getOffsetY(), direction.getOffsetZ()) < 0;
+
+        emitter.material(face.material);
+        emitter.cullFace(null);
+        emitter.nominalFace(direction);
+        emitter.colorIndex(face.colorIndex);
+        for (int i = 0; i < 4; i++) {
+            int corner = reverse ? (4 - i) % 4 : i;
+            emitter.pos(i, positions[corner]);
+            emitter.color(i, face.color);
+            emitter.lightmap(i, face.lightmap);
+            // the sprite is a single colour, so stretching it is not visible
+            emitter.uv(i, corners[corner][0] == u0 ? 0 : 1, corners[corner][1] == v0 ? 0 : 1);
+        }
+        emitter.spriteBake(face.sprite, MutableQuadView.BAKE_NORMALIZED);
+
+        if (transform.transform(emitter))
+            emitter.emit();
+    }
+
+    /**
+     * Side of the block that is fully covered by the quad, or null.
+     */
+    @Nullable
+    private static Direction getFullSide(MutableQuadView quad) {
+        Direction direction = quad.nominalFace();
+        if (direction == null)
+            return null;
+
+        int axis = direction.getAxis().ordinal();
+        int uAxis = (axis + 1) % 3;
+        int vAxis = (axis + 2) % 3;
+        float plane = direction.getDirection() == Direction.AxisDirection.POSITIVE ? 1 : 0;
+
+        // each corner of the side has to be a vertex
+        int corners = 0;
+        for (int i = 0; i < 4; i++) {
+            if (Math.abs(quad.posByIndex(i, axis) - plane) > EPSILON)
+                return null;
+            int u = getUnitCoordinate(quad.posByIndex(i, uAxis));
+            int v = getUnitCoordinate(quad.posByIndex(i, vAxis));
+            if (u < 0 || v < 0)
+                return null;
+            corners |= 1 << (u + 2 * v);
+        }
+        return corners == 0b1111 ? direction : null;
+    }
+
+    private static int getUnitCoordinate(float value) {
+        if (Math.abs(value) < EPSILON) return 0;
+        if (Math.abs(value - 1) < EPSILON) return 1;
+        return -1;
+    }
+
+    private static boolean hasFlatShading(MutableQuadView quad) {
+        for (int i = 1; i < 4; i++) {
+            if (quad.color(i) != quad.color(0) || quad.lightmap(i) != quad.lightmap(0))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Only models that consist of baked quads are considered, with a single quad on the side.
+     */
+    private Sprite[] getSideSprites(BlockState state) {
+        Sprite[] sprites = new Sprite[6];
+        BakedModel model = blockModels.getModel(state);
+        if (!((FabricBakedModel) model).isVanillaAdapter())
+            return sprites;
+
+        List<BakedQuad> unculled = model.getQuads(state, null, random);
+        for (Direction direction : Direction.values()) {
+            List<BakedQuad> quads = new ArrayList<>(model.getQuads(state, direction, random));
+            for (BakedQuad quad : unculled) {
+                if (quad.getFace() == direction)
+                    quads.add(quad);
+            }
+            if (quads.size() == 1)
+                sprites[direction.getId()] = quads.get(0).getSprite();
+        }
+        return sprites;
+    }
+
+    /**
+     * Whether the sprite is opaque and all its pixels have about the same colour.
+     */
+    private static boolean isUniform(Sprite sprite) {
+        return UNIFORM_SPRITES.computeIfAbsent(sprite, GreedyMesher::computeUniform);
+    }
+
+    private static boolean computeUniform(Sprite sprite) {
+        SpriteContents contents = sprite.getContents();
+        NativeImage image = ((SpriteContentsAccess) contents).getImage();
+        // animated sprites have all frames in the image
+        if (image.getWidth() != contents.getWidth() || image.getHeight() != contents.getHeight())
+            return false;
+
+        int[] min = {255, 255, 255};
+        int[] max = {0, 0, 0};
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int color = image.getColor(x, y);
+                if ((color >>> 24) != 0xFF)
+                    return false;
+                for (int c = 0; c < 3; c++) {
+                    int value = (color >> (8 * c)) & 0xFF;
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                }
+            }
+        }
+        for (int c = 0; c < 3; c++) {
+            if (max[c] - min[c] > MAX_SPRITE_DEVIATION)
+                return false;
+        }
+        return true;
+    }
+
+    private static class Face {
+        private final Sprite sprite;
+        private final RenderMaterial material;
+        private final int colorIndex;
+        private final int color;
+        private final int lightmap;
+
+        private Face(Sprite sprite, RenderMaterial material, int colorIndex, int color, int lightmap) {
+            this.sprite = sprite;
+            this.material = material;
+            this.colorIndex = colorIndex;
+            this.color = color;
+            this.lightmap = lightmap;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Face face)) return false;
+            return sprite == face.sprite && material == face.material && colorIndex == face.colorIndex && color == face.color && lightmap == face.lightmap;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sprite, material, colorIndex, color, lightmap);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package be.immersivechess.client.render.model.util;
+
+import be.immersivechess.structure.StructureHelper;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.Renderer;
+import net.fabricmc.fabric.api.renderer.v1.RendererAccess;
+import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
+import net.fabricmc.fabric.api.renderer.v1.mesh.Mesh;
+import net.fabricmc.fabric.api.renderer.v1.mesh.MeshBuilder;
+import net.fabricmc.fabric.api.renderer.v1.mesh.MutableQuadView;
+import net.fabricmc.fabric.api.renderer.v1.mesh.QuadEmitter;
+import net.minecraft.block.BlockRenderType;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.render.LightmapTextureManager;
+import net.minecraft.client.render.block.BlockModels;
+import net.minecraft.client.render.model.BakedModel;
+import net.minecraft.client.render.model.BakedQuad;
+import net.minecraft.client.texture.Sprite;
+import net.minecraft.structure.StructureTemplate;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.Vec3i;
+import net.minecraft.util.math.random.Random;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Builds simplified meshes of a structure for rendering at a distance. The structure is downsampled to a coarser voxel
+ * grid, after which the visible faces of the coarse voxels are merged into as few quads as possible. Every face shows
+ * the texture of the block it comes from, stretched over the merged quad.
+ */
+@Environment(EnvType.CLIENT)
+public class LodMeshBuilder {
+    private static final long SEED = 42L;
+
+    private final int factor;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    // null for empty voxels
+    private final BlockState[] voxels;
+
+    private final Map<BlockState, Face[]> faces = new HashMap<>();
+    private final BlockModels blockModels = MinecraftClient.getInstance().getBakedModelManager().getBlockModels();
+    private final Random random = Random.create(SEED);
+
+    private LodMeshBuilder(StructureTemplate structure, int factor) {
+        this.factor = factor;
+        Vec3i size = structure.getSize();
+        sizeX = (size.getX() + factor - 1) / factor;
+        sizeY = (size.getY() + factor - 1) / factor;
+        sizeZ = (size.getZ() + factor - 1) / factor;
+        voxels = downsample(structure);
+    }
+
+    /**
+     * Mesh in the same coordinates as the full mesh of the structure, so it can be used in its place.
+     *
+     * @param factor number of blocks of the structure along each axis that become one voxel
+     * @param scale  size of a block of the structure in the mesh
+     */
+    public static Mesh build(StructureTemplate structure, int factor, float scale) {
+        return new LodMeshBuilder(structure, factor).build(scale);
+    }
+
+    /**
+     * A coarse voxel takes the most common block among its blocks, if at least a quarter of them is filled.
+     * This keeps thin parts of a piece, which would otherwise disappear.
+     */
+    private BlockState[] downsample(StructureTemplate structure) {
+        List<Object2IntMap<BlockState>> counts = new ArrayList<>(sizeX * sizeY * sizeZ);
+        for (int i = 0; i < sizeX * sizeY * sizeZ; i++) {
+            counts.add(null);
+        }
+
+        for (StructureTemplate.StructureBlockInfo info : StructureHelper.getBlockInfoList(structure)) {
+            BlockState state = info.state();
+            if (state.isAir() || state.getRenderType() != BlockRenderType.MODEL) continue;
+
+            BlockPos pos = info.pos();
+            int index = index(pos.getX() / factor, pos.getY() / factor, pos.getZ() / factor);
+            Object2IntMap<BlockState> cell = counts.get(index);
+            if (cell == null) {
+                cell = new Object2IntOpenHashMap<>();
+                counts.set(index, cell);
+            }
+            cell.mergeInt(state, 1, Integer::sum);
+        }
+
+        int volume = factor * factor * factor;
+        BlockState[] voxels = new BlockState[counts.size()];
+        for (int i = 0; i < counts.size(); i++) {
+            Object2IntMap<BlockState> cell = counts.get(i);
+            if (cell == null) continue;
+
+            int filled = 0;
+            int best = 0;
+            for (Object2IntMap.Entry<BlockState> entry : cell.object2IntEntrySet()) {
+                filled += entry.getIntValue();
+                if (entry.getIntValue() > best) {
+                    best = entry.getIntValue();
+                    voxels[i] = entry.getKey();
+                }
+            }
+            if (filled * 4 < volume)
+                voxels[i] = null;
+        }
+        return voxels;
+    }
+
+    private Mesh build(float scale) {
+        Renderer renderer = RendererAccess.INSTANCE.getRenderer();
+        MeshBuilder builder = renderer.meshBuilder();
+        QuadEmitter emitter = builder.getEmitter();
+
+        int[] size = {sizeX, sizeY, sizeZ};
+        for (Direction direction : Direction.values()) {
+            int axis = direction.getAxis().ordinal();
+            int uAxis = (axis + 1) % 3;
+            int vAxis = (axis + 2) % 3;
+            int width = size[uAxis];
+            int height = size[vAxis];
+
+            Face[] mask = new Face[width * height];
+            int[] pos = new int[3];
+            for (int slice = 0; slice < size[axis]; slice++) {
+                // visible faces of this slice
+                for (int v = 0; v < height; v++) {
+                    for (int u = 0; u < width; u++) {
+                        pos[axis] = slice;
+                        pos[uAxis] = u;
+                        pos[vAxis] = v;
+                        mask[u + v * width] = getVisibleFace(pos, direction);
+                    }
+                }
+                mergeAndEmit(mask, width, height, slice, axis, uAxis, vAxis, direction, scale * factor, emitter);
+            }
+        }
+
+        return builder.build();
+    }
+
+    private Face getVisibleFace(int[] pos, Direction direction) {
+        BlockState state = getVoxel(pos[0], pos[1], pos[2]);
+        if (state == null) return null;
+        if (getVoxel(pos[0] + direction.getOffsetX(), pos[1] + direction.getOffsetY(), pos[2] + direction.getOffsetZ()) != null)
+            return null;
+        return faces.computeIfAbsent(state, this::createFaces)[direction.getId()];
+    }
+
+    /**
+     * Greedily merges equal faces into rectangles, which are emitted and cleared from the mask.
+     */
+    private void mergeAndEmit(Face[] mask, int width, int height, int slice, int axis, int uAxis, int vAxis, Direction direction, float scale, QuadEmitter emitter) {
+        for (int v = 0; v < height; v++) {
+            for (int u = 0; u < width; u++) {
+                Face face = mask[u + v * width];
+                if (face == null) continue;
+
+                int w = 1;
+                while (u + w < width && face.equals(mask[u + w + v * width])) w++;
+
+                int h = 1;
+                expand:
+                while (v + h < height) {
+                    for (int k = 0; k < w; k++) {
+                        if (!face.equals(mask[u + k + (v + h) * width])) break expand;
+                    }
+                    h++;
+                }
+
+                for (int j = 0; j < h; j++) {
+                    for (int k = 0; k < w; k++) {
+                        mask[u + k + (v + j) * width] = null;
+                    }
+                }
+
+                float plane = direction.getDirection() == Direction.AxisDirection.POSITIVE ? slice + 1 : slice;
+                emitQuad(face, plane, u, v, u + w, v + h, axis, uAxis, vAxis, direction, scale, emitter);
+            }
+        }
+    }
+
+    private void emitQuad(Face face, float plane, int u0, int v0, int u1, int v1, int axis, int uAxis, int vAxis, Direction direction, float scale, QuadEmitter emitter) {
+        int[][] corners = {{u0, v0}, {u0, v1}, {u1, v1}, {u1, v0}};
+        Vector3f[] positions = new Vector3f[4];
+        for (int i = 0; i < 4; i++) {
+            float[] p = new float[3];
+            p[axis] = plane;
+            p[uAxis] = corners[i][0];
+            p[vAxis] = corners[i][1];
+            positions[i] = new Vector3f(p[0], p[1], p[2]).mul(scale);
+        }
+
+        // vertices are counterclockwise when looking at the face from outside
+        Vector3f normal = new Vector3f(positions[2]).sub(positions[0]).cross(new Vector3f(positions[3]).sub(positions[1]));
+        boolean reverse = normal.dot(direction.getOffsetX(), direction.getOffsetY(), direction.getOffsetZ()) < 0;
+
+        emitter.material(face.material);
+        emitter.cullFace(null);
+        emitter.nominalFace(direction);
+        emitter.colorIndex(face.colorIndex);
+        for (int i = 0; i < 4; i++) {
+            Vector3f p = positions[reverse ? (4 - i) % 4 : i];
+            emitter.pos(i, p);
+            emitter.color(i, -1);
+            emitter.lightmap(i, face.lightmap);
+            // texture upright on the sides, stretched over the whole quad
+            float u = direction.getAxis() == Direction.Axis.X ? p.z : p.x;
+            float v = direction.getAxis() == Direction.Axis.Y ? p.z : -p.y;
+            emitter.uv(i, u, v);
+        }
+        normalizeUv(emitter);
+        emitter.spriteBake(face.sprite, MutableQuadView.BAKE_NORMALIZED);
+        new QuadTransform.TintRemap(face.state).transform(emitter);
+        emitter.emit();
+    }
+
+    /**
+     * Maps the texture coordinates of the quad onto [0, 1].
+     */
+    private static void normalizeUv(QuadEmitter emitter) {
+        float minU = Float.MAX_VALUE, maxU = -Float.MAX_VALUE, minV = Float.MAX_VALUE, maxV = -Float.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            minU = Math.min(minU, emitter.u(i));
+            maxU = Math.max(maxU, emitter.u(i));
+            minV = Math.min(minV, emitter.v(i));
+            maxV = Math.max(maxV, emitter.v(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            emitter.uv(i, (emitter.u(i) - minU) / (maxU - minU), (emitter.v(i) - minV) / (maxV - minV));
+        }
+    }
+
+    /**
+     * Texture and tint of each side of the block, taken from the first quad of its model on that side.
+     */
+    private Face[] createFaces(BlockState state) {
+        BakedModel model = blockModels.getModel(state);
+        int lightmap = LightmapTextureManager.pack(state.getLuminance(), 15);
+        Face[] result = new Face[6];
+        for (Direction direction : Direction.values()) {
+            List<BakedQuad> quads = model.getQuads(state, direction, random);
+            if (quads.isEmpty())
+                quads = model.getQuads(state, null, random);
+
+            BakedQuad quad = quads.stream().filter(q -> q.getFace() == direction).findFirst()
+                    .orElse(quads.isEmpty() ? null : quads.get(0));
+            Sprite sprite = quad == null ? model.getParticleSprite() : quad.getSprite();
+            int colorIndex = quad == null || !quad.hasColor() ? -1 : quad.getColorIndex();
+            result[direction.getId()] = new Face(state, sprite, colorIndex, lightmap);
+        }
+        return result;
+    }
+
+    private BlockState getVoxel(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ) return null;
+        return voxels[index(x, y, z)];
+    }
+
+    private int index(int x, int y, int z) {
+        return (y * sizeZ + z) * sizeX + x;
+    }
+
+    /**
+     * Faces are merged when they look the same, also when they come from different blocks.
+     */
+    private static class Face {
+        private final BlockState state;
+        private final RenderMaterial material;
+        private final Sprite sprite;
+        private final int colorIndex;
+        private final int lightmap;
+
+        private Face(BlockState state, Sprite sprite, int colorIndex, int lightmap) {
+            this.state = state;
+            this.material = MaterialHelper.getMaterial(state);
+            this.sprite = sprite;
+            this.colorIndex = colorIndex;
+            this.lightmap = lightmap;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Face face)) return false;
+            // tint depends on the color provider of the block
+            boolean sameTint = colorIndex < 0 ? face.colorIndex < 0 : face.colorIndex == colorIndex && face.state.getBlock() == state.getBlock();
+            return sprite == face.sprite && material == face.material && lightmap == face.lightmap && sameTint;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sprite, lightmap);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package be.immersivechess.client.render.model.util;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.RendererAccess;
+import net.fabricmc.fabric.api.renderer.v1.material.BlendMode;
+import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
+import net.fabricmc.fabric.api.util.TriState;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.render.RenderLayers;
+import net.minecraft.fluid.FluidState;
+
+/**
+ * Materials of the quads in miniature meshes. Quads are drawn in the render layer of the block they come from, so
+ * only translucent blocks end up in the (sorted) translucent layer.
+ */
+@Environment(EnvType.CLIENT)
+public class MaterialHelper {
+
+    public static RenderMaterial getMaterial(BlockState state) {
+        return getMaterial(BlendMode.fromRenderLayer(RenderLayers.getBlockLayer(state)));
+    }
+
+    public static RenderMaterial getMaterial(FluidState state) {
+        return getMaterial(BlendMode.fromRenderLayer(RenderLayers.getFluidLayer(state)));
+    }
+
+    public static RenderMaterial getMaterial(BlendMode blendMode) {
+        return RendererAccess.INSTANCE.getRenderer().materialFinder()
+                .blendMode(blendMode)
+                .ambientOcclusion(TriState.DEFAULT)
+                .emissive(false)
+                .find();
+    }
+}
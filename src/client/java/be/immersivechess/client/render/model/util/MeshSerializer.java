@@ -0,0 +1,137 @@
+package be.immersivechess.client.render.model.util;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.Renderer;
+import net.fabricmc.fabric.api.renderer.v1.RendererAccess;
+import net.fabricmc.fabric.api.renderer.v1.material.BlendMode;
+import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
+import net.fabricmc.fabric.api.renderer.v1.mesh.Mesh;
+import net.fabricmc.fabric.api.renderer.v1.mesh.MeshBuilder;
+import net.fabricmc.fabric.api.renderer.v1.mesh.QuadEmitter;
+import net.fabricmc.fabric.api.renderer.v1.mesh.QuadView;
+import net.fabricmc.fabric.api.util.TriState;
+import net.minecraft.util.math.Direction;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of a mesh: material properties, face, color index and all vertex attributes of every quad.
+ * Texture coordinates are stored as is, so serialized meshes are only valid for the same texture atlas layout.
+ */
+@Environment(EnvType.CLIENT)
+public class MeshSerializer {
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_EMISSIVE = 1;
+    private static final int FLAG_DISABLE_DIFFUSE = 2;
+    private static final int FLAG_DISABLE_COLOR_INDEX = 4;
+
+    public static byte[] write(Mesh mesh) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeInt(FORMAT_VERSION);
+            int[] count = new int[1];
+            mesh.forEach(quad -> count[0]++);
+            output.writeInt(count[0]);
+
+            IOException[] error = new IOException[1];
+            mesh.forEach(quad -> {
+                if (error[0] != null) return;
+                try {
+                    writeQuad(quad, output);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null)
+                throw error[0];
+        } catch (IOException e) {
+            // in memory streams don't throw
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeQuad(QuadView quad, DataOutputStream output) throws IOException {
+        RenderMaterial material = quad.material();
+        output.writeByte(material.blendMode().ordinal());
+        output.writeByte(material.ambientOcclusion().ordinal());
+        int flags = 0;
+        if (material.emissive()) flags |= FLAG_EMISSIVE;
+        if (material.disableDiffuse()) flags |= FLAG_DISABLE_DIFFUSE;
+        if (material.disableColorIndex()) flags |= FLAG_DISABLE_COLOR_INDEX;
+        output.writeByte(flags);
+
+        Direction nominalFace = quad.nominalFace();
+        output.writeByte(nominalFace == null ? -1 : nominalFace.getId());
+        output.writeInt(quad.colorIndex());
+
+        for (int i = 0; i < 4; i++) {
+            output.writeFloat(quad.x(i));
+            output.writeFloat(quad.y(i));
+            output.writeFloat(quad.z(i));
+            output.writeInt(quad.color(i));
+            output.writeFloat(quad.u(i));
+            output.writeFloat(quad.v(i));
+            output.writeInt(quad.lightmap(i));
+            output.writeBoolean(quad.hasNormal(i));
+            if (quad.hasNormal(i)) {
+                output.writeFloat(quad.normalX(i));
+                output.writeFloat(quad.normalY(i));
+                output.writeFloat(quad.normalZ(i));
+            }
+        }
+    }
+
+    /**
+     * Null when the data is not a mesh of the current format.
+     */
+    @Nullable
+    public static Mesh read(ByteBuffer buffer) {
+        Renderer renderer = RendererAccess.INSTANCE.getRenderer();
+        MeshBuilder builder = renderer.meshBuilder();
+        QuadEmitter emitter = builder.getEmitter();
+        try {
+            if (buffer.getInt() != FORMAT_VERSION) return null;
+            int count = buffer.getInt();
+            for (int q = 0; q < count; q++) {
+                BlendMode blendMode = BlendMode.values()[buffer.get()];
+                TriState ambientOcclusion = TriState.values()[buffer.get()];
+                int flags = buffer.get();
+                emitter.material(renderer.materialFinder()
+                        .blendMode(blendMode)
+                        .ambientOcclusion(ambientOcclusion)
+                        .emissive((flags & FLAG_EMISSIVE) != 0)
+                        .disableDiffuse((flags & FLAG_DISABLE_DIFFUSE) != 0)
+                        .disableColorIndex((flags & FLAG_DISABLE_COLOR_INDEX) != 0)
+                        .find());
+
+                int face = buffer.get();
+                emitter.cullFace(null);
+                emitter.nominalFace(face < 0 ? null : Direction.byId(face));
+                emitter.colorIndex(buffer.getInt());
+
+                for (int i = 0; i < 4; i++) {
+                    emitter.pos(i, buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                    emitter.color(i, buffer.getInt());
+                    emitter.uv(i, buffer.getFloat(), buffer.getFloat());
+                    emitter.lightmap(i, buffer.getInt());
+                    if (buffer.get() != 0)
+                        emitter.normal(i, buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                }
+                emitter.emit();
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        return builder.build();
+    }
+}
@@ -5,134 +5,135 @@ import be.immersivechess.client.color.TintMapper;
 import be.immersivechess.item.PieceContainer;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
 import net.fabricmc.fabric.api.renderer.v1.mesh.MutableQuadView;
 import net.fabricmc.fabric.api.renderer.v1.render.RenderContext;
 import net.minecraft.block.BlockState;
 import net.minecraft.util.math.Direction;
 import org.joml.Matrix3f;
+import org.joml.Matrix4f;
 import org.joml.Quaternionf;
 import org.joml.Vector3f;
 
-import java.util.Optional;
-
 @Environment(EnvType.CLIENT)
 public abstract class QuadTransform implements RenderContext.QuadTransform {
-    private static abstract class PositionTransform extends QuadTransform {
-        @Override
-        public boolean transform(MutableQuadView quad) {
-            Vector3f p = new Vector3f();
-            for (int i = 0; i < 4; i++) {
-                quad.copyPos(i, p);
-                apply(p);
-                quad.pos(i, p);
-            }
-            return true;
+    /**
+     * Applies a matrix to the positions, normals and nominal face of a quad in a single pass, without allocations.
+     * The matrix can be replaced between quads, so a single instance can be reused for every block of a mesh.
+     */
+    public static class Affine extends QuadTransform {
+        private final Matrix4f matrix = new Matrix4f();
+        private final Matrix3f normalMatrix = new Matrix3f();
+
+        public Affine() {
         }
 
-        /**
-         * Applied for all vertices in the quad
-         */
-        abstract protected void apply(Vector3f pos);
-    }
-
-    public static class Scale extends PositionTransform {
-        private final float scale;
-
-        public Scale(float scale) {
-            this.scale = scale;
+        public Affine(Matrix4f matrix) {
+            set(matrix);
         }
 
-        @Override
-        protected void apply(Vector3f p) {
-            p.mul(scale);
+        public Affine set(Matrix4f matrix) {
+            this.matrix.set(matrix);
+            this.matrix.normal(normalMatrix);
+            return this;
         }
-    }
 
-    public static class Translate extends PositionTransform {
-        private final Vector3f offset;
-
-        public Translate(Vector3f offset) {
-            this.offset = offset;
-        }
-
-        public Translate(float x, float y, float z) {
-            this.offset = new Vector3f(x, y, z);
-        }
-
-        @Override
-        protected void apply(Vector3f p) {
-            p.add(offset);
-        }
-    }
-
-    private static abstract class RotationTransform extends PositionTransform {
         @Override
         public boolean transform(MutableQuadView quad) {
-            Vector3f p = new Vector3f();
+            Matrix4f m = matrix;
+            Matrix3f n = normalMatrix;
             for (int i = 0; i < 4; i++) {
-                quad.copyPos(i, p);
-                apply(p);
-                quad.pos(i, p);
+                float x = quad.x(i);
+                float y = quad.y(i);
+                float z = quad.z(i);
+                quad.pos(i,
+                        m.m00() * x + m.m10() * y + m.m20() * z + m.m30(),
+                        m.m01() * x + m.m11() * y + m.m21() * z + m.m31(),
+                        m.m02() * x + m.m12() * y + m.m22() * z + m.m32());
 
-                // also transform normals
                 if (quad.hasNormal(i)) {
-                    quad.copyNormal(i, p);
-                    applyNormal(p);
-                    quad.normal(i, p);
+                    float nx = quad.normalX(i);
+                    float ny = quad.normalY(i);
+                    float nz = quad.normalZ(i);
+                    float tx = n.m00 * nx + n.m10 * ny + n.m20 * nz;
+                    float ty = n.m01 * nx + n.m11 * ny + n.m21 * nz;
+                    float tz = n.m02 * nx + n.m12 * ny + n.m22 * nz;
+                    float length = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+                    if (length > 0)
+                        quad.normal(i, tx / length, ty / length, tz / length);
                 }
             }
+
+            Direction d = quad.nominalFace();
+            if (d != null) {
+                float x = d.getOffsetX();
+                float y = d.getOffsetY();
+                float z = d.getOffsetZ();
+                quad.nominalFace(Direction.getFacing(
+                        n.m00 * x + n.m10 * y + n.m20 * z,
+                        n.m01 * x + n.m11 * y + n.m21 * z,
+                        n.m02 * x + n.m12 * y + n.m22 * z));
+            }
             return true;
         }
+    }
 
-        abstract protected void applyNormal(Vector3f pos);
+    public static class Scale extends Affine {
+        public Scale(float scale) {
+            super(new Matrix4f().scaling(scale));
+        }
     }
 
-    public static class Rotate extends RotationTransform {
-        private final Matrix3f rotation;
-        private final Vector3f center;
+    public static class Translate extends Affine {
+        public Translate(Vector3f offset) {
+            this(offset.x, offset.y, offset.z);
+        }
+
+        public Translate(float x, float y, float z) {
+            super(new Matrix4f().translation(x, y, z));
+        }
+    }
 
+    public static class Rotate extends Affine {
         public Rotate(Quaternionf rotation) {
             this(rotation, new Vector3f(0.5f, 0.5f, 0.5f));
         }
 
         public Rotate(Quaternionf rotation, Vector3f center) {
-            this.rotation = rotation.get(new Matrix3f());
-            this.center = center;
+            super(new Matrix4f().translation(center).rotate(rotation).translate(-center.x, -center.y, -center.z));
         }
+    }
 
-        @Override
-        public boolean transform(MutableQuadView quad) {
-            // also update nominalFace
-            Direction d = quad.nominalFace();
-            if (d != null) {
-                Vector3f newFacing = d.getUnitVector().mul(rotation);
-                quad.nominalFace(Direction.getFacing(newFacing.x, newFacing.y, newFacing.z));
-            }
-            return super.transform(quad);
-        }
+    public static class Material extends QuadTransform {
+        private final RenderMaterial material;
 
-        @Override
-        protected void apply(Vector3f p) {
-            p.sub(center);
-            p.mul(rotation);
-            p.add(center);
+        public Material(RenderMaterial material) {
+            this.material = material;
         }
 
         @Override
-        protected void applyNormal(Vector3f n) {
-            n.mul(rotation);
+        public boolean transform(MutableQuadView quad) {
+            quad.material(material);
+            return true;
         }
     }
 
     public static class TintRemap extends QuadTransform {
         private final BlockState bs;
+        // looked up once for all quads of the block, -1 when unknown
+        private final int offset;
 
         public TintRemap(BlockState bs) {
             this.bs = bs;
+            this.offset = TintMapper.INSTANCE.getTintOffset(bs);
         }
 
         @Override
         public boolean transform(MutableQuadView quad) {
+            return remap(quad, bs, offset);
+        }
+
+        private static boolean remap(MutableQuadView quad, BlockState bs, int offset) {
             int tintIndex = quad.colorIndex();
 
             if (tintIndex < 0)
@@ -151,9 +152,8 @@ public abstract class QuadTransform implements RenderContext.QuadTransform {
             if (tintIndex > TintMapper.CAPACITY)
                 ImmersiveChess.LOGGER.warn("tintIndex exceeds allocated capacity. Some colors may get translated wrong.");
 
-            Optional<Integer> offset = TintMapper.INSTANCE.getTintOffset(bs.getBlock());
-            if (offset.isPresent()) {
-                quad.colorIndex(offset.get() + tintIndex);
+            if (offset >= 0) {
+                quad.colorIndex(offset + tintIndex);
             } else {
                 ImmersiveChess.LOGGER.warn("ColorProvider not found for Block " + bs.getBlock());
                 quad.colorIndex(-1);
@@ -162,4 +162,27 @@ public abstract class QuadTransform implements RenderContext.QuadTransform {
         }
     }
 
+    /**
+     * Material and tint remapping of the block that emits the quads in one transform, which is reused for every block
+     * of a mesh.
+     */
+    public static class BlockMaterial extends QuadTransform {
+        private BlockState bs;
+        private RenderMaterial material;
+        private int offset;
+
+        public BlockMaterial setBlock(BlockState bs) {
+            this.bs = bs;
+            this.material = MaterialHelper.getMaterial(bs);
+            this.offset = TintMapper.INSTANCE.getTintOffset(bs);
+            return this;
+        }
+
+        @Override
+        public boolean transform(MutableQuadView quad) {
+            quad.material(material);
+            return TintRemap.remap(quad, bs, offset);
+        }
+    }
+
 }
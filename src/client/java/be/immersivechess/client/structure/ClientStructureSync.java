@@ -0,0 +1,188 @@
+package be.immersivechess.client.structure;
+
+import be.immersivechess.ImmersiveChess;
+import be.immersivechess.block.entity.StructureRenderedBlockEntity;
+import be.immersivechess.client.cache.DiskCache;
+import be.immersivechess.network.StructureSync;
+import be.immersivechess.structure.PackedStructure;
+import be.immersivechess.structure.StructureHash;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.nbt.NbtByteArray;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Client side of {@link StructureSync}. Keeps the structures received during this session and requests missing ones
+ * once per tick. Received structures are also cached on disk, so they are not downloaded again in later sessions.
+ * Structures the server doesn't have, or that don't match their hash, are requested again with an increasing delay
+ * while block entities are waiting for them.
+ * Only accessed from the client thread.
+ */
+@Environment(EnvType.CLIENT)
+public class ClientStructureSync {
+
+    private static final Map<String, NbtCompound> received = new HashMap<>();
+    // requested structures with the block entities waiting for them
+    private static final Map<String, Set<StructureRenderedBlockEntity>> waiting = new HashMap<>();
+    private static final Set<String> toRequest = new LinkedHashSet<>();
+    // structures that were not received, requested again once the client tick reaches their due tick
+    private static final Map<String, Retry> retries = new HashMap<>();
+    private static long ticks;
+
+    private static final int FIRST_RETRY_TICKS = 20;
+    private static final int MAX_RETRY_TICKS = 5 * 60 * 20;
+
+    // hashes are used as file names
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    public static void onInitializeClient() {
+        StructureSync.setClientLookup(ClientStructureSync::getOrRequest);
+
+        ClientPlayNetworking.registerGlobalReceiver(StructureSync.STRUCTURES, (client, handler, buf, responseSender) -> {
+            // decode on the network thread
+            Map<String, NbtCompound> structures = new LinkedHashMap<>();
+            int count = buf.readVarInt();
+            for (int i = 0; i < count; i++) {
+                String hash = buf.readString();
+                NbtCompound wrapper = buf.readNbt();
+                boolean found = wrapper != null && wrapper.contains(StructureSync.STRUCTURE_KEY);
+                NbtCompound structureNbt = found ? PackedStructure.read(wrapper.get(StructureSync.STRUCTURE_KEY)) : null;
+                if (structureNbt != null && !hash.equals(StructureHash.of(structureNbt))) {
+                    ImmersiveChess.LOGGER.warn("Received structure does not match its hash " + hash);
+                    structureNbt = null;
+                }
+                structures.put(hash, structureNbt);
+            }
+            client.execute(() -> structures.forEach(ClientStructureSync::onReceived));
+        });
+
+        ClientTickEvents.END_CLIENT_TICK.register(ClientStructureSync::sendRequests);
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> client.execute(ClientStructureSync::clear));
+    }
+
+    @Nullable
+    private static NbtCompound getOrRequest(String hash, StructureRenderedBlockEntity blockEntity) {
+        NbtCompound structureNbt = received.computeIfAbsent(hash, ClientStructureSync::readFromDisk);
+        if (structureNbt != null)
+            return structureNbt;
+
+        waiting.computeIfAbsent(hash, h -> {
+            toRequest.add(h);
+            return Collections.newSetFromMap(new WeakHashMap<>());
+        }).add(blockEntity);
+        return null;
+    }
+
+    /**
+     * The structure is null when the server doesn't have it or it didn't match its hash.
+     */
+    private static void onReceived(String hash, @Nullable NbtCompound structureNbt) {
+        if (structureNbt == null) {
+            scheduleRetry(hash);
+            return;
+        }
+
+        Set<StructureRenderedBlockEntity> blockEntities = waiting.remove(hash);
+        retries.remove(hash);
+        received.put(hash, structureNbt);
+        writeToDisk(hash, structureNbt);
+        if (blockEntities != null)
+            blockEntities.forEach(be -> be.onStructureReceived(hash, structureNbt));
+    }
+
+    @Nullable
+    private static NbtCompound readFromDisk(String hash) {
+        if (!HASH_PATTERN.matcher(hash).matches()) return null;
+
+        ByteBuffer buffer = DiskCache.STRUCTURES.read(hash);
+        if (buffer == null) return null;
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try {
+            NbtCompound structureNbt = PackedStructure.fromBytes(bytes).toNbt();
+            return hash.equals(StructureHash.of(structureNbt)) ? structureNbt : null;
+        } catch (IOException | RuntimeException e) {
+            ImmersiveChess.LOGGER.warn("Invalid cached structure " + hash, e);
+            return null;
+        }
+    }
+
+    /**
+     * Requests the structure again after a delay that doubles with every attempt, unless nothing is waiting for it.
+     */
+    private static void scheduleRetry(String hash) {
+        Set<StructureRenderedBlockEntity> blockEntities = waiting.get(hash);
+        if (blockEntities == null || blockEntities.isEmpty()) {
+            waiting.remove(hash);
+            retries.remove(hash);
+            return;
+        }
+
+        Retry retry = retries.computeIfAbsent(hash, h -> new Retry());
+        int delay = MAX_RETRY_TICKS;
+        if (retry.attempts < 16)
+            delay = Math.min(MAX_RETRY_TICKS, FIRST_RETRY_TICKS << retry.attempts);
+        retry.attempts++;
+        retry.dueTick = ticks + delay;
+        ImmersiveChess.LOGGER.warn("Structure " + hash + " not received, requesting it again in " + delay / 20 + " seconds");
+    }
+
+    /**
+     * Only called with structures that match their hash, the cache is shared between servers.
+     */
+    private static void writeToDisk(String hash, NbtCompound structureNbt) {
+        if (!HASH_PATTERN.matcher(hash).matches()) return;
+
+        // structures that can't be packed are not cached
+        if (PackedStructure.write(structureNbt) instanceof NbtByteArray bytes)
+            DiskCache.STRUCTURES.write(hash, bytes.getByteArray());
+    }
+
+    private static void sendRequests(MinecraftClient client) {
+        ticks++;
+        for (Map.Entry<String, Retry> entry : retries.entrySet()) {
+            if (entry.getValue().dueTick <= ticks) {
+                entry.getValue().dueTick = Long.MAX_VALUE;
+                toRequest.add(entry.getKey());
+            }
+        }
+
+        if (toRequest.isEmpty() || !ClientPlayNetworking.canSend(StructureSync.REQUEST_STRUCTURES)) return;
+
+        List<String> hashes = new ArrayList<>();
+        Iterator<String> iterator = toRequest.iterator();
+        while (iterator.hasNext() && hashes.size() < StructureSync.MAX_HASHES_PER_REQUEST) {
+            hashes.add(iterator.next());
+            iterator.remove();
+        }
+
+        PacketByteBuf buf = PacketByteBufs.create();
+        StructureSync.writeHashes(buf, hashes);
+        ClientPlayNetworking.send(StructureSync.REQUEST_STRUCTURES, buf);
+    }
+
+    private static void clear() {
+        received.clear();
+        waiting.clear();
+        toRequest.clear();
+        retries.clear();
+    }
+
+    private static class Retry {
+        private int attempts;
+        private long dueTick;
+    }
+}
@@ -4,9 +4,11 @@ import be.immersivechess.advancement.criterion.Criteria;
 import be.immersivechess.block.Blocks;
 import be.immersivechess.block.entity.BlockEntityTypes;
 import be.immersivechess.item.Items;
+import be.immersivechess.network.StructureSync;
 import be.immersivechess.recipe.Recipes;
 import be.immersivechess.resource.BlockStateLuminanceMapper;
 import be.immersivechess.screen.ScreenHandlerTypes;
+import be.immersivechess.structure.StructureUpgrader;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
 import net.minecraft.resource.ResourceType;
@@ -31,5 +33,8 @@ public class ImmersiveChess implements ModInitializer {
 		Criteria.onInitialize();
 
 		ScreenHandlerTypes.onInitialize();
+
+		StructureSync.onInitialize();
+		StructureUpgrader.onInitialize();
 	}
 }
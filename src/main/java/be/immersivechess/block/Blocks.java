@@ -2,7 +2,6 @@ package be.immersivechess.block;
 
 import be.immersivechess.ImmersiveChess;
 import be.immersivechess.block.entity.BlockEntityTypes;
-import be.immersivechess.block.entity.StructureRenderedBlockEntity;
 import be.immersivechess.logic.Piece;
 import ch.astorm.jchess.core.Color;
 import net.fabricmc.fabric.api.object.builder.v1.block.FabricBlockSettings;
@@ -56,7 +55,7 @@ public class Blocks {
                 FabricBlockSettings
                         .create()
                         .emissiveLighting((state, world, pos) -> world.getBlockEntity(pos, BlockEntityTypes.PIECE_BLOCK_ENTITY_TYPE)
-                                        .map(StructureRenderedBlockEntity::containsLightSource)
+                                        .map(be -> be.getStructureProfile().containsLightSource())
                                         .orElse(false))
                         .mapColor(MapColor.CLEAR)
                         .pistonBehavior(PistonBehavior.BLOCK)
@@ -74,7 +73,7 @@ public class Blocks {
                 FabricBlockSettings
                         .create()
                         .emissiveLighting((state, world, pos) -> world.getBlockEntity(pos, BlockEntityTypes.PIECE_STAND_BLOCK_ENTITY_TYPE)
-                                .map(StructureRenderedBlockEntity::containsLightSource)
+                                .map(be -> be.getStructureProfile().containsLightSource())
                                 .orElse(false))
                         .mapColor(piece.getColor() == Color.WHITE ? MapColor.WHITE : MapColor.BLACK)
                         .pistonBehavior(PistonBehavior.DESTROY)
@@ -90,7 +89,7 @@ public class Blocks {
                 FabricBlockSettings
                         .create()
                         .emissiveLighting((state, world, pos) -> world.getBlockEntity(pos, BlockEntityTypes.PIECE_STRUCTURE_BLOCK_ENTITY_TYPE)
-                                .map(StructureRenderedBlockEntity::containsLightSource)
+                                .map(be -> be.getStructureProfile().containsLightSource())
                                 .orElse(false))
                         .pistonBehavior(PistonBehavior.BLOCK)   // redundant because it already has an entity
                         .solid()
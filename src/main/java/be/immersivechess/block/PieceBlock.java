@@ -227,6 +227,13 @@ public class PieceBlock extends BlockWithEntity implements PieceContainer {
         super.onBreak(world, pos, state, player);
     }
 
+    @Override
+    public void onStateReplaced(BlockState state, World world, BlockPos pos, BlockState newState, boolean moved) {
+        if (!state.isOf(newState.getBlock()) && world.getBlockEntity(pos) instanceof PieceBlockEntity pieceBlockEntity)
+            pieceBlockEntity.releaseStructure();
+        super.onStateReplaced(state, world, pos, newState, moved);
+    }
+
     @Override
     public List<ItemStack> getDroppedStacks(BlockState state, LootContextParameterSet.Builder builder) {
         // if not on an ongoing game, don't drop anything
@@ -235,7 +242,7 @@ public class PieceBlock extends BlockWithEntity implements PieceContainer {
         if (gameState == null || gameState.getStatus().isFinished()) return Collections.emptyList();
 
         // if possible destination of pawn is backline -> drop promotion pieces instead
-        List<ItemStack> normalLoot = super.getDroppedStacks(state, builder);
+        List<ItemStack> normalLoot = PieceContainer.writeStructureNbt(super.getDroppedStacks(state, builder), builder.getOptional(LootContextParameters.BLOCK_ENTITY));
         for (ItemStack stack : normalLoot) {
             if (isPromotablePawn(stack)) {
                 return getPromotionPieces(gameState, stack);
@@ -177,6 +177,8 @@ public class PieceStructureBlock extends BlockWithEntity implements PieceContain
      */
     @Override
     public void onStateReplaced(BlockState state, World world, BlockPos pos, BlockState newState, boolean moved) {
+        if (!state.isOf(newState.getBlock()) && world.getBlockEntity(pos) instanceof PieceStructureBlockEntity structureBlockEntity)
+            structureBlockEntity.releaseStructure();
         super.onStateReplaced(state, world, pos, newState, moved);
 
         if (state.isOf(newState.getBlock()))
@@ -8,6 +8,8 @@ import net.minecraft.block.*;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.item.BlockItem;
 import net.minecraft.item.ItemStack;
+import net.minecraft.loot.context.LootContextParameterSet;
+import net.minecraft.loot.context.LootContextParameters;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.shape.VoxelShape;
 import net.minecraft.util.shape.VoxelShapes;
@@ -15,6 +17,8 @@ import net.minecraft.world.BlockView;
 import net.minecraft.world.World;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
+
 public class StandBlock extends BlockWithEntity implements PieceContainer {
 
     public static final VoxelShape OUTLINE_SHAPE = VoxelShapes.union(
@@ -44,6 +48,18 @@ public class StandBlock extends BlockWithEntity implements PieceContainer {
         return null;
     }
 
+    @Override
+    public void onStateReplaced(BlockState state, World world, BlockPos pos, BlockState newState, boolean moved) {
+        if (!state.isOf(newState.getBlock()) && world.getBlockEntity(pos) instanceof PieceStandBlockEntity standBlockEntity)
+            standBlockEntity.releaseStructure();
+        super.onStateReplaced(state, world, pos, newState, moved);
+    }
+
+    @Override
+    public List<ItemStack> getDroppedStacks(BlockState state, LootContextParameterSet.Builder builder) {
+        return PieceContainer.writeStructureNbt(super.getDroppedStacks(state, builder), builder.getOptional(LootContextParameters.BLOCK_ENTITY));
+    }
+
     @Override
     public ItemStack getPickStack(BlockView world, BlockPos pos, BlockState state) {
         ItemStack itemStack = super.getPickStack(world, pos, state);
@@ -4,9 +4,9 @@ import be.immersivechess.ImmersiveChess;
 import be.immersivechess.logic.Piece;
 import be.immersivechess.util.BlockStateUtil;
 import be.immersivechess.world.ChessGameState;
+import be.immersivechess.world.ModelRedraws;
 import ch.astorm.jchess.core.Coordinate;
 import net.fabricmc.fabric.api.rendering.data.v1.RenderAttachmentBlockEntity;
-import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.entity.BlockEntity;
@@ -200,7 +200,7 @@ public class BoardBlockEntity extends BlockEntity implements RenderAttachmentBlo
         if (world == null)
             return;
 
-        world.updateListeners(pos, getCachedState(), getCachedState(), Block.NOTIFY_LISTENERS);
+        ModelRedraws.redraw(world, pos, getCachedState());
     }
 
     private void syncToClient(){
@@ -6,6 +6,7 @@ import be.immersivechess.item.PieceContainer;
 import be.immersivechess.item.StandItem;
 import be.immersivechess.logic.Piece;
 import be.immersivechess.structure.StructureHelper;
+import be.immersivechess.structure.StructureStore;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.entity.LivingEntity;
@@ -48,13 +49,23 @@ public class PieceStructureBlockEntity extends DyedStructureRenderedBlockEntity
         this.authorName = placer.getEntityName();
     }
 
+    /**
+     * Every edit in the building area stores a new structure. The previous one is discarded right away instead of being
+     * kept in the store for its grace period, it is derived from the building area and is rebuilt on the next edit if a
+     * crash left a reference to it.
+     */
     public void updateStructure() {
+        String previousHash = getStructureHash();
         setStructureNbt(buildStructureNbtFromWorld());
+        if (previousHash != null && !previousHash.equals(getStructureHash()) && world instanceof ServerWorld serverWorld)
+            StructureStore.get(serverWorld.getServer()).discardIfUnused(previousHash);
     }
 
     public ItemStack getContent() {
         ItemStack content = new ItemStack(Items.PIECE_STANDS.get(getPiece()));
-        PieceContainer.writeStructureNbt(content, getStructureNbt());
+        // null when the stored structure is missing, the stand then has the default structure
+        if (getStructureNbt() != null)
+            PieceContainer.writeStructureNbt(content, getStructureNbt());
         PieceContainer.writeColor(content, getColor());
         return content;
     }
@@ -1,12 +1,19 @@
 package be.immersivechess.block.entity;
 
+import be.immersivechess.ImmersiveChess;
 import be.immersivechess.item.PieceContainer;
-import be.immersivechess.structure.StructureHelper;
+import be.immersivechess.network.StructureSync;
+import be.immersivechess.structure.PackedStructure;
+import be.immersivechess.structure.StructureHash;
+import be.immersivechess.structure.StructureProfile;
 import be.immersivechess.structure.StructureResolver;
+import be.immersivechess.structure.StructureStore;
+import be.immersivechess.structure.StructureUpgrader;
 import be.immersivechess.world.MiniatureBlockRenderView;
 import be.immersivechess.world.MiniatureWorld;
+import be.immersivechess.world.MiniatureWorlds;
+import be.immersivechess.world.ModelRedraws;
 import net.fabricmc.fabric.api.blockview.v2.RenderDataBlockEntity;
-import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.block.entity.BlockEntityType;
@@ -14,18 +21,38 @@ import net.minecraft.nbt.NbtCompound;
 import net.minecraft.network.listener.ClientPlayPacketListener;
 import net.minecraft.network.packet.Packet;
 import net.minecraft.network.packet.s2c.play.BlockEntityUpdateS2CPacket;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.structure.StructureTemplate;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public abstract class StructureRenderedBlockEntity extends BlockEntity implements RenderDataBlockEntity {
+    /**
+     * Render data while the structure is not available yet, because it is still being decoded or received.
+     */
+    public static final Object PLACEHOLDER = new Object();
+
+    @Nullable
+    private NbtCompound structureNbt;
+    // hash of structureNbt, or the hash read from nbt that still needs to be looked up once the world is known
+    @Nullable
+    private String structureHash;
     @Nullable
     private StructureTemplate structure;
+    // decode of the latest structure nbt, results of older decodes are dropped
+    @Nullable
+    private CompletableFuture<StructureTemplate> pendingStructure;
     @Nullable
     private MiniatureWorld miniWorld;
+    // structure of which the shared miniature world is acquired, released when it changes or this is removed
+    @Nullable
+    private StructureTemplate miniWorldStructure;
+    private StructureProfile profile = StructureProfile.EMPTY;
 
     public StructureRenderedBlockEntity(BlockEntityType<?> type, BlockPos pos, BlockState state) {
         super(type, pos, state);
@@ -35,34 +62,109 @@ public abstract class StructureRenderedBlockEntity extends BlockEntity implement
      * Whether the structure contains at least one light source (can be fully hidden, this is not checked).
      */
     public boolean containsLightSource() {
-        if (structure == null) return false;
-
-        return getStructureContent().entrySet().stream().anyMatch(e -> e.getValue().getLuminance() > 0);
+        return profile.containsLightSource();
     }
 
-    protected Map<BlockPos, BlockState> getStructureContent() {
-        return StructureHelper.buildBlockStateMap(structure);
+    /**
+     * Precomputed analysis of the structure, never null.
+     */
+    public StructureProfile getStructureProfile() {
+        return profile;
     }
 
     @Override
     public void readNbt(NbtCompound nbt) {
         super.readNbt(nbt);
         if (nbt.contains(PieceContainer.NBT_STRUCTURE_KEY)) {
-            NbtCompound structureNbt = nbt.getCompound(PieceContainer.NBT_STRUCTURE_KEY);
+            // inline structures come from items or older saves, which can be of an older game version
+            NbtCompound structureNbt = StructureUpgrader.upgrade(PackedStructure.read(nbt.get(PieceContainer.NBT_STRUCTURE_KEY)));
+            if (world == null) {
+                // while loading, resolved once the world is set
+                this.structureNbt = structureNbt;
+                this.structureHash = null;
+            } else {
+                setStructureNbt(structureNbt);
+            }
+        } else if (nbt.contains(PieceContainer.NBT_STRUCTURE_HASH_KEY)) {
+            String hash = nbt.getString(PieceContainer.NBT_STRUCTURE_HASH_KEY);
+            if (world == null) {
+                // registered as holder in the store once the world is set
+                this.structureNbt = null;
+                this.structureHash = hash;
+            } else if (world instanceof ServerWorld serverWorld) {
+                setStructureNbt(StructureStore.get(serverWorld.getServer()).get(hash));
+            } else if (!hash.equals(structureHash)) {
+                // keeps rendering the previous structure until the new one is received
+                NbtCompound structureNbt = StructureSync.getOrRequest(hash, this);
+                if (structureNbt != null) {
+                    setStructureNbt(structureNbt);
+                } else {
+                    this.structureNbt = null;
+                    this.structureHash = hash;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setWorld(World world) {
+        super.setWorld(world);
+        resolveStructure();
+    }
+
+    /**
+     * Called on the client when a structure requested through {@link StructureSync} arrives.
+     */
+    public void onStructureReceived(String hash, NbtCompound structureNbt) {
+        if (this.structureNbt == null && hash.equals(structureHash) && !isRemoved())
             setStructureNbt(structureNbt);
+    }
+
+    /**
+     * Finishes loading of the structure read from nbt, which needs the world to access the store.
+     */
+    private void resolveStructure() {
+        if (world instanceof ServerWorld serverWorld) {
+            StructureStore store = StructureStore.get(serverWorld.getServer());
+            if (structureNbt != null && structureHash == null) {
+                // stored inline by an older version
+                structureHash = store.retain(structureNbt, getStructureHolder());
+            } else if (structureNbt == null && structureHash != null) {
+                // also registers copies of this block entity, loading the same block entity again doesn't count twice
+                structureNbt = store.acquire(structureHash, getStructureHolder());
+                if (structureNbt == null) {
+                    ImmersiveChess.LOGGER.warn("Missing structure " + structureHash + " at " + pos);
+                    structureHash = null;
+                } else {
+                    // the structure may have been upgraded since this block entity was saved
+                    structureHash = store.resolve(structureHash);
+                }
+            }
+        } else if (world != null) {
+            if (structureNbt != null && structureHash == null)
+                structureHash = StructureHash.of(structureNbt);
+            else if (structureNbt == null && structureHash != null)
+                structureNbt = StructureSync.getOrRequest(structureHash, this);
         }
+
+        // no updates here, the chunk is still being loaded
+        if (world != null && structure == null && pendingStructure == null && structureNbt != null)
+            loadStructure(structureNbt, false);
     }
 
     @Override
     protected void writeNbt(NbtCompound nbt) {
         super.writeNbt(nbt);
-        // nbt data is passed along to item when mined
-        if (structure != null)
-            nbt.put(PieceContainer.NBT_STRUCTURE_KEY, getStructureNbt());
+        // the structure is only persisted in the store
+        if (structureHash != null && world instanceof ServerWorld)
+            nbt.putString(PieceContainer.NBT_STRUCTURE_HASH_KEY, structureHash);
+        else if (structureNbt != null)
+            nbt.put(PieceContainer.NBT_STRUCTURE_KEY, PackedStructure.write(structureNbt));
     }
 
     @Override
     public NbtCompound toInitialChunkDataNbt() {
+        // only contains the hash, clients request the structures they don't have yet (see StructureSync)
         return createNbt();
     }
 
@@ -72,29 +174,135 @@ public abstract class StructureRenderedBlockEntity extends BlockEntity implement
         return BlockEntityUpdateS2CPacket.create(this);
     }
 
-    public void setStructureNbt(NbtCompound structureNbt) {
-        if (structureNbt == null) {
-            setStructure(null);
+    public void setStructureNbt(@Nullable NbtCompound structureNbt) {
+        if (structureNbt != null)
+            structureNbt = StructureUpgrader.upgrade(structureNbt);
+        String hash = structureNbt == null ? null : StructureHash.of(structureNbt);
+        if (Objects.equals(hash, structureHash) && this.structureNbt != null)
             return;
+
+        if (world instanceof ServerWorld serverWorld) {
+            // released first, in case the previous hash is an alias of the new structure
+            releaseStructure();
+            if (structureNbt != null)
+                StructureStore.get(serverWorld.getServer()).retain(structureNbt, getStructureHolder());
         }
-        StructureTemplate template = StructureResolver.getStructure(structureNbt);
-        setStructure(template);
+
+        this.structureNbt = structureNbt;
+        this.structureHash = hash;
+        markDirty();
+        loadStructure(structureNbt, true);
     }
 
-    public void setStructure(StructureTemplate structure) {
-        if (!Objects.equals(this.structure, structure)) {
-            this.structure = structure;
-            if (this.hasWorld())
-                this.miniWorld = new MiniatureWorld(getWorld(), structure);
-            markDirty();
+    /**
+     * Removes this block entity as holder of its structure in the store. Called when the block is removed.
+     */
+    public void releaseStructure() {
+        if (structureHash != null && world instanceof ServerWorld serverWorld)
+            StructureStore.get(serverWorld.getServer()).release(structureHash, getStructureHolder());
+    }
+
+    private String getStructureHolder() {
+        return StructureStore.getHolder(world, pos);
+    }
+
+    /**
+     * Decodes the structure on a worker thread, unless it was decoded before. The previous structure (or a placeholder)
+     * is rendered in the meantime and the block is redrawn once the result is applied, if requested.
+     */
+    private void loadStructure(@Nullable NbtCompound structureNbt, boolean update) {
+        pendingStructure = null;
+        Executor executor = StructureResolver.getMainExecutor(world);
+        if (structureNbt == null || executor == null) {
+            setStructure(structureNbt == null ? null : StructureResolver.getStructure(structureNbt), update);
+            return;
+        }
+
+        CompletableFuture<StructureTemplate> future = StructureResolver.getStructureAsync(structureNbt);
+        if (future.isDone()) {
+            setStructure(future.join(), update);
+            return;
+        }
+
+        pendingStructure = future;
+        future.whenCompleteAsync((structure, error) -> {
+            if (pendingStructure != future || isRemoved()) return;
+            pendingStructure = null;
+            if (error != null)
+                ImmersiveChess.LOGGER.error("Failed to decode structure " + structureHash + " at " + pos, error);
+            else
+                setStructure(structure, true);
+        }, executor);
+    }
+
+    private void setStructure(@Nullable StructureTemplate structure, boolean update) {
+        if (Objects.equals(this.structure, structure))
+            return;
+
+        this.structure = structure;
+        this.profile = StructureProfile.of(structure);
+        releaseMiniWorld();
+        if (structure != null && this.hasWorld())
+            acquireMiniWorld(structure);
+        if (update)
             updateBlockModel();
+    }
+
+    /**
+     * The miniature world is only used to render block entities of the structure, so it can arrive later without redraw.
+     * It is shared with all block entities that show the same structure (see {@link MiniatureWorlds}). Only the template
+     * is decoded off thread, the miniature world is built on the main executor.
+     */
+    private void acquireMiniWorld(StructureTemplate structure) {
+        World world = this.world;
+        Executor executor = StructureResolver.getMainExecutor(world);
+        miniWorldStructure = structure;
+
+        CompletableFuture<MiniatureWorld> future = MiniatureWorlds.acquire(world, structure, executor);
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            this.miniWorld = future.join();
+            return;
         }
+
+        future.whenCompleteAsync((miniWorld, error) -> {
+            if (error != null)
+                ImmersiveChess.LOGGER.error("Failed to build miniature world at " + pos, error);
+            else if (miniWorldStructure == structure && this.world == world)
+                this.miniWorld = miniWorld;
+        }, executor == null ? Runnable::run : executor);
+    }
+
+    private void releaseMiniWorld() {
+        if (miniWorldStructure != null && world != null)
+            MiniatureWorlds.release(world, miniWorldStructure);
+        miniWorldStructure = null;
+        miniWorld = null;
+    }
+
+    @Override
+    public void markRemoved() {
+        super.markRemoved();
+        releaseMiniWorld();
+    }
+
+    @Override
+    public void cancelRemoval() {
+        super.cancelRemoval();
+        if (structure != null && miniWorldStructure == null && hasWorld())
+            acquireMiniWorld(structure);
     }
 
+    /**
+     * The returned nbt is shared and should not be modified.
+     */
     @Nullable
     public NbtCompound getStructureNbt() {
-        if (structure == null) return null;
-        return structure.writeNbt(new NbtCompound());
+        return structureNbt;
+    }
+
+    @Nullable
+    public String getStructureHash() {
+        return structureHash;
     }
 
     @Nullable
@@ -111,11 +319,16 @@ public abstract class StructureRenderedBlockEntity extends BlockEntity implement
         if (this.world == null)
             return;
 
-        this.world.updateListeners(this.pos, this.getCachedState(), this.getCachedState(), Block.REDRAW_ON_MAIN_THREAD);
+        ModelRedraws.redraw(this.world, this.pos, this.getCachedState());
     }
 
+    /**
+     * The structure template, {@link #PLACEHOLDER} while it is not available yet or null when there is no structure.
+     */
     @Override
     public @Nullable Object getRenderData() {
+        if (structure == null && (pendingStructure != null || structureHash != null))
+            return PLACEHOLDER;
         return getStructure();
     }
 
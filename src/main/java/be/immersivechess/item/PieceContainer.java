@@ -2,8 +2,12 @@ package be.immersivechess.item;
 
 import be.immersivechess.ImmersiveChess;
 import be.immersivechess.block.entity.PieceBlockEntity;
+import be.immersivechess.block.entity.StructureRenderedBlockEntity;
 import be.immersivechess.logic.Piece;
+import be.immersivechess.structure.PackedStructure;
+import be.immersivechess.structure.StructureUpgrader;
 import ch.astorm.jchess.core.Coordinate;
+import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.item.BlockItem;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtCompound;
@@ -21,6 +25,8 @@ public interface PieceContainer {
 
     // under BlockItem.BLOCK_ENTITY_TAG_KEY
     String NBT_STRUCTURE_KEY = "Structure";
+    // block entities in a server world only store the hash of their structure (see StructureStore)
+    String NBT_STRUCTURE_HASH_KEY = "StructureHash";
     String NBT_COLOR_KEY = "Color";
 
     // in root nbt
@@ -37,21 +43,55 @@ public interface PieceContainer {
         return null;
     }
 
+    /**
+     * Items keep the full (packed) structure instead of a hash in the {@link be.immersivechess.structure.StructureStore}.
+     * The store can't track items as holders, they are copied and destroyed without notice, and items also leave the
+     * world of the store (creative inventory, other worlds and servers).
+     */
     static void writeStructureNbt(ItemStack stack, NbtCompound structureNbt) {
         NbtCompound nbt = stack.getOrCreateSubNbt(BlockItem.BLOCK_ENTITY_TAG_KEY);
-        nbt.put(NBT_STRUCTURE_KEY, structureNbt);
+        nbt.put(NBT_STRUCTURE_KEY, PackedStructure.write(structureNbt));
+    }
+
+    /**
+     * Block entities don't persist their structure, so the loot table can't copy it. Adds it to the dropped stacks instead.
+     */
+    static List<ItemStack> writeStructureNbt(List<ItemStack> stacks, @Nullable BlockEntity blockEntity) {
+        if (!(blockEntity instanceof StructureRenderedBlockEntity structureBlockEntity) || structureBlockEntity.getStructureNbt() == null)
+            return stacks;
+
+        for (ItemStack stack : stacks) {
+            if (stack.getItem() instanceof PieceContainer)
+                writeStructureNbt(stack, structureBlockEntity.getStructureNbt());
+        }
+        return stacks;
     }
 
+    /**
+     * Structure at the current data version, older structures are upgraded but not written back (see {@link #upgradeStructureNbt}).
+     */
     @NotNull
     static NbtCompound getStructureNbt(ItemStack stack) {
         NbtCompound nbt = stack.getSubNbt(BlockItem.BLOCK_ENTITY_TAG_KEY);
         if (nbt != null && nbt.contains(PieceContainer.NBT_STRUCTURE_KEY))
-            return nbt.getCompound(PieceContainer.NBT_STRUCTURE_KEY);
+            return StructureUpgrader.upgrade(PackedStructure.read(nbt.get(PieceContainer.NBT_STRUCTURE_KEY)));
 
         // empty compound indicates use of default structure
         return new NbtCompound();
     }
 
+    /**
+     * Rewrites a structure saved by an older game version, so the data fixer doesn't have to run for it again.
+     */
+    static void upgradeStructureNbt(ItemStack stack) {
+        NbtCompound nbt = stack.getSubNbt(BlockItem.BLOCK_ENTITY_TAG_KEY);
+        if (nbt == null || !nbt.contains(PieceContainer.NBT_STRUCTURE_KEY)) return;
+
+        NbtCompound structureNbt = PackedStructure.read(nbt.get(PieceContainer.NBT_STRUCTURE_KEY));
+        if (StructureUpgrader.needsUpgrade(structureNbt))
+            writeStructureNbt(stack, StructureUpgrader.upgrade(structureNbt));
+    }
+
     static void writeColor(ItemStack stack, int color) {
         NbtCompound nbt = stack.getOrCreateSubNbt(BlockItem.BLOCK_ENTITY_TAG_KEY);
         nbt.putInt(NBT_COLOR_KEY, color);
@@ -34,6 +34,7 @@ public class PieceItem extends BlockItem implements PieceContainer {
     public void inventoryTick(ItemStack stack, World world, Entity entity, int slot, boolean selected) {
         super.inventoryTick(stack, world, entity, slot, selected);
         if (removeIfInvalid(stack, world, entity, slot)) return;
+        if (!world.isClient) PieceContainer.upgradeStructureNbt(stack);
     }
 
     /**
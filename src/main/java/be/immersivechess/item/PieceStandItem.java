@@ -2,8 +2,9 @@ package be.immersivechess.item;
 
 import be.immersivechess.block.PieceStandBlock;
 import be.immersivechess.logic.Piece;
-import net.minecraft.item.BlockItem;
-import net.minecraft.item.DyeableItem;
+import net.minecraft.entity.Entity;
+import net.minecraft.item.ItemStack;
+import net.minecraft.world.World;
 
 /**
  * Serves as a template for the real pieces. Contains a structure in Nbt.
@@ -22,4 +23,10 @@ public class PieceStandItem extends StandItem implements PieceContainer {
         return piece;
     }
 
+    @Override
+    public void inventoryTick(ItemStack stack, World world, Entity entity, int slot, boolean selected) {
+        super.inventoryTick(stack, world, entity, slot, selected);
+        if (!world.isClient) PieceContainer.upgradeStructureNbt(stack);
+    }
+
 }
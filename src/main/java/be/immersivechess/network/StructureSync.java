@@ -0,0 +1,133 @@
+package be.immersivechess.network;
+
+import be.immersivechess.ImmersiveChess;
+import be.immersivechess.block.entity.StructureRenderedBlockEntity;
+import be.immersivechess.structure.PackedStructure;
+import be.immersivechess.structure.StructureStore;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Block entities only send the hash of their structure to clients. Clients request the structures they don't know yet
+ * and the server answers the requests of each player in a single packet per tick.
+ */
+public class StructureSync {
+    // C2S: list of hashes
+    public static final Identifier REQUEST_STRUCTURES = new Identifier(ImmersiveChess.MOD_ID, "request_structures");
+    // S2C: list of hash and structure, missing structures have no structure
+    public static final Identifier STRUCTURES = new Identifier(ImmersiveChess.MOD_ID, "structures");
+
+    public static final int MAX_HASHES_PER_REQUEST = 256;
+    public static final String STRUCTURE_KEY = "Structure";
+
+    // limits the pending requests per player, which are kept in memory
+    private static final int MAX_PENDING_PER_PLAYER = 1024;
+    // stays well under the vanilla limit for custom payloads, remaining structures are sent next tick
+    private static final int MAX_BYTES_PER_PACKET = 512 * 1024;
+
+    private static final Map<UUID, Set<String>> pendingRequests = new HashMap<>();
+
+    // Set by the client, looks up a structure that was received before or requests it.
+    private static ClientLookup clientLookup = (hash, blockEntity) -> null;
+
+    public static void onInitialize() {
+        ServerPlayNetworking.registerGlobalReceiver(REQUEST_STRUCTURES, (server, player, handler, buf, responseSender) -> {
+            List<String> hashes = readHashes(buf);
+            server.execute(() -> addRequests(player, hashes));
+        });
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> pendingRequests.remove(handler.getPlayer().getUuid()));
+        ServerTickEvents.END_SERVER_TICK.register(StructureSync::sendPending);
+    }
+
+    private static void addRequests(ServerPlayerEntity player, List<String> hashes) {
+        Set<String> pending = pendingRequests.computeIfAbsent(player.getUuid(), p -> new LinkedHashSet<>());
+        for (String hash : hashes) {
+            if (pending.size() >= MAX_PENDING_PER_PLAYER) {
+                ImmersiveChess.LOGGER.warn("Too many structure requests from " + player.getEntityName());
+                return;
+            }
+            pending.add(hash);
+        }
+    }
+
+    private static void sendPending(MinecraftServer server) {
+        if (pendingRequests.isEmpty()) return;
+
+        StructureStore store = StructureStore.get(server);
+        Iterator<Map.Entry<UUID, Set<String>>> playerIterator = pendingRequests.entrySet().iterator();
+        while (playerIterator.hasNext()) {
+            Map.Entry<UUID, Set<String>> entry = playerIterator.next();
+            ServerPlayerEntity player = server.getPlayerManager().getPlayer(entry.getKey());
+            if (player == null) {
+                playerIterator.remove();
+                continue;
+            }
+
+            PacketByteBuf entries = PacketByteBufs.create();
+            int count = 0;
+            Iterator<String> hashIterator = entry.getValue().iterator();
+            while (hashIterator.hasNext() && entries.writerIndex() < MAX_BYTES_PER_PACKET) {
+                String hash = hashIterator.next();
+                hashIterator.remove();
+
+                NbtCompound wrapper = new NbtCompound();
+                NbtCompound structureNbt = store.get(hash);
+                if (structureNbt != null)
+                    wrapper.put(STRUCTURE_KEY, PackedStructure.write(structureNbt));
+                entries.writeString(hash);
+                entries.writeNbt(wrapper);
+                count++;
+            }
+            if (entry.getValue().isEmpty())
+                playerIterator.remove();
+
+            PacketByteBuf buf = PacketByteBufs.create();
+            buf.writeVarInt(count);
+            buf.writeBytes(entries);
+            ServerPlayNetworking.send(player, STRUCTURES, buf);
+        }
+    }
+
+    public static void writeHashes(PacketByteBuf buf, Collection<String> hashes) {
+        buf.writeVarInt(hashes.size());
+        hashes.forEach(buf::writeString);
+    }
+
+    private static List<String> readHashes(PacketByteBuf buf) {
+        int count = Math.min(buf.readVarInt(), MAX_HASHES_PER_REQUEST);
+        List<String> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hashes.add(buf.readString(64));
+        }
+        return hashes;
+    }
+
+    public static void setClientLookup(ClientLookup lookup) {
+        clientLookup = lookup;
+    }
+
+    /**
+     * Structure for a hash received from the server. When it is not available yet, it is requested and passed to
+     * {@link StructureRenderedBlockEntity#onStructureReceived} once it arrives.
+     */
+    @Nullable
+    public static NbtCompound getOrRequest(String hash, StructureRenderedBlockEntity blockEntity) {
+        return clientLookup.getOrRequest(hash, blockEntity);
+    }
+
+    @FunctionalInterface
+    public interface ClientLookup {
+        @Nullable
+        NbtCompound getOrRequest(String hash, StructureRenderedBlockEntity blockEntity);
+    }
+}
@@ -0,0 +1,362 @@
+package be.immersivechess.structure;
+
+import be.immersivechess.ImmersiveChess;
+import com.google.common.collect.MapMaker;
+import net.minecraft.nbt.*;
+import net.minecraft.util.collection.PackedIntegerArray;
+import net.minecraft.util.math.MathHelper;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary encoding of a structure: a small block state palette, bit-packed palette indices per voxel and only
+ * the nbt of the block entities that are present. Converts from and to vanilla structure nbt, which is still used by
+ * everything that loads structures.
+ * <p>
+ * Structures that don't fit the format (multiple palettes, entities, huge sizes) are kept as vanilla nbt.
+ */
+public final class PackedStructure {
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte FLAG_DEFLATED = 1;
+
+    // way larger than any piece, limits the size of malformed data
+    private static final int MAX_SIZE = 64;
+
+    // vanilla structure nbt keys
+    private static final String DATA_VERSION_KEY = "DataVersion";
+    private static final String SIZE_KEY = "size";
+    private static final String PALETTE_KEY = "palette";
+    private static final String PALETTES_KEY = "palettes";
+    private static final String BLOCKS_KEY = "blocks";
+    private static final String ENTITIES_KEY = "entities";
+    private static final String POS_KEY = "pos";
+    private static final String STATE_KEY = "state";
+    private static final String NBT_KEY = "nbt";
+    private static final String NAME_KEY = "Name";
+    private static final String PROPERTIES_KEY = "Properties";
+
+    // Keyed on identity, nbt of structures is not modified after creation.
+    private static final Map<NbtElement, NbtCompound> DECODED = new MapMaker().weakKeys().makeMap();
+    private static final Map<NbtCompound, NbtElement> ENCODED = new MapMaker().weakKeys().makeMap();
+
+    private final int dataVersion;
+    private final int sizeX, sizeY, sizeZ;
+    // block state compounds, index 0 in the voxels means no block
+    private final List<NbtCompound> palette;
+    private final PackedIntegerArray voxels;
+    private final SortedMap<Integer, NbtCompound> blockEntities;
+
+    private PackedStructure(int dataVersion, int sizeX, int sizeY, int sizeZ, List<NbtCompound> palette, PackedIntegerArray voxels, SortedMap<Integer, NbtCompound> blockEntities) {
+        this.dataVersion = dataVersion;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.palette = palette;
+        this.voxels = voxels;
+        this.blockEntities = blockEntities;
+    }
+
+    /**
+     * Nbt element to store the structure with. A byte array when the structure can be packed, the nbt itself otherwise.
+     */
+    public static NbtElement write(NbtCompound structureNbt) {
+        return ENCODED.computeIfAbsent(structureNbt, nbt -> {
+            PackedStructure packed = of(nbt);
+            if (packed == null) return nbt;
+            return new NbtByteArray(packed.toBytes());
+        });
+    }
+
+    /**
+     * Reads structure nbt from an element written by {@link #write(NbtCompound)} or legacy structure nbt.
+     * Returns an empty compound (default structure) when the data is invalid.
+     */
+    public static NbtCompound read(@Nullable NbtElement element) {
+        if (element instanceof NbtCompound compound)
+            return compound;
+        if (!(element instanceof NbtByteArray byteArray))
+            return new NbtCompound();
+
+        return DECODED.computeIfAbsent(byteArray, e -> {
+            try {
+                NbtCompound structureNbt = fromBytes(byteArray.getByteArray()).toNbt();
+                ENCODED.put(structureNbt, byteArray);
+                return structureNbt;
+            } catch (IOException | RuntimeException e) {
+                ImmersiveChess.LOGGER.error("Failed to decode packed structure", e);
+                return new NbtCompound();
+            }
+        });
+    }
+
+    /**
+     * Packs vanilla structure nbt, null when the structure is not supported by this format.
+     */
+    @Nullable
+    public static PackedStructure of(NbtCompound structureNbt) {
+        if (structureNbt.contains(PALETTES_KEY) || !structureNbt.getList(ENTITIES_KEY, NbtElement.COMPOUND_TYPE).isEmpty())
+            return null;
+
+        NbtList size = structureNbt.getList(SIZE_KEY, NbtElement.INT_TYPE);
+        if (size.size() != 3) return null;
+        int sizeX = size.getInt(0);
+        int sizeY = size.getInt(1);
+        int sizeZ = size.getInt(2);
+        if (!isValidSize(sizeX, sizeY, sizeZ)) return null;
+
+        // deduplicate palette, vanilla palettes can contain the same state more than once
+        NbtList vanillaPalette = structureNbt.getList(PALETTE_KEY, NbtElement.COMPOUND_TYPE);
+        List<NbtCompound> states = new ArrayList<>();
+        for (int i = 0; i < vanillaPalette.size(); i++) {
+            NbtCompound state = normalizeState(vanillaPalette.getCompound(i));
+            if (state == null) return null;
+            states.add(state);
+        }
+
+        NbtCompound[] voxelStates = new NbtCompound[sizeX * sizeY * sizeZ];
+        SortedMap<Integer, NbtCompound> blockEntities = new TreeMap<>();
+        NbtList blocks = structureNbt.getList(BLOCKS_KEY, NbtElement.COMPOUND_TYPE);
+        for (int i = 0; i < blocks.size(); i++) {
+            NbtCompound block = blocks.getCompound(i);
+            NbtList pos = block.getList(POS_KEY, NbtElement.INT_TYPE);
+            int state = block.getInt(STATE_KEY);
+            if (pos.size() != 3 || state < 0 || state >= states.size()) return null;
+
+            int x = pos.getInt(0), y = pos.getInt(1), z = pos.getInt(2);
+            if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ) return null;
+
+            int index = (y * sizeZ + z) * sizeX + x;
+            voxelStates[index] = states.get(state);
+            if (block.contains(NBT_KEY, NbtElement.COMPOUND_TYPE))
+                blockEntities.put(index, block.getCompound(NBT_KEY));
+            else
+                blockEntities.remove(index);
+        }
+
+        // palette in order of first occurrence, so equal content always results in the same palette
+        Map<NbtCompound, Integer> paletteIndices = new LinkedHashMap<>();
+        int[] indices = new int[voxelStates.length];
+        for (int i = 0; i < voxelStates.length; i++) {
+            if (voxelStates[i] == null) continue;
+            indices[i] = paletteIndices.computeIfAbsent(voxelStates[i], s -> paletteIndices.size() + 1);
+        }
+
+        PackedIntegerArray voxels = new PackedIntegerArray(bitsFor(paletteIndices.size()), indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            voxels.set(i, indices[i]);
+        }
+
+        int dataVersion = structureNbt.contains(DATA_VERSION_KEY, NbtElement.NUMBER_TYPE) ? structureNbt.getInt(DATA_VERSION_KEY) : -1;
+        return new PackedStructure(dataVersion, sizeX, sizeY, sizeZ, List.copyOf(paletteIndices.keySet()), voxels, blockEntities);
+    }
+
+    public static PackedStructure fromBytes(byte[] bytes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte version = input.readByte();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unknown packed structure version " + version);
+        byte flags = input.readByte();
+        if ((flags & FLAG_DEFLATED) != 0)
+            input = new DataInputStream(new InflaterInputStream(input));
+
+        int dataVersion = input.readInt();
+        int sizeX = input.readUnsignedShort();
+        int sizeY = input.readUnsignedShort();
+        int sizeZ = input.readUnsignedShort();
+        if (!isValidSize(sizeX, sizeY, sizeZ))
+            throw new IOException("Invalid packed structure size " + sizeX + "x" + sizeY + "x" + sizeZ);
+
+        int paletteSize = input.readUnsignedShort();
+        List<NbtCompound> palette = new ArrayList<>(paletteSize);
+        for (int i = 0; i < paletteSize; i++) {
+            NbtCompound state = new NbtCompound();
+            state.putString(NAME_KEY, input.readUTF());
+            int propertyCount = input.readUnsignedByte();
+            if (propertyCount > 0) {
+                NbtCompound properties = new NbtCompound();
+                for (int j = 0; j < propertyCount; j++) {
+                    properties.putString(input.readUTF(), input.readUTF());
+                }
+                state.put(PROPERTIES_KEY, properties);
+            }
+            palette.add(state);
+        }
+
+        int volume = sizeX * sizeY * sizeZ;
+        long[] data = new long[input.readInt()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = input.readLong();
+        }
+        PackedIntegerArray voxels = new PackedIntegerArray(bitsFor(paletteSize), volume, data);
+
+        int blockEntityCount = input.readInt();
+        SortedMap<Integer, NbtCompound> blockEntities = new TreeMap<>();
+        for (int i = 0; i < blockEntityCount; i++) {
+            int index = input.readInt();
+            blockEntities.put(index, NbtIo.read(input));
+        }
+
+        return new PackedStructure(dataVersion, sizeX, sizeY, sizeZ, palette, voxels, blockEntities);
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            writePayload(new DataOutputStream(raw), false);
+
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            try (DeflaterOutputStream output = new DeflaterOutputStream(deflated, new Deflater(Deflater.BEST_COMPRESSION))) {
+                raw.writeTo(output);
+            }
+
+            // only compress when it actually helps
+            boolean compress = deflated.size() < raw.size();
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            result.write(FORMAT_VERSION);
+            result.write(compress ? FLAG_DEFLATED : 0);
+            (compress ? deflated : raw).writeTo(result);
+            return result.toByteArray();
+        } catch (IOException e) {
+            // in memory streams don't throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the content in a form that only depends on the blocks in the structure, used for hashing.
+     */
+    void writeCanonical(DataOutput output) throws IOException {
+        writePayload(output, true);
+    }
+
+    private void writePayload(DataOutput output, boolean canonical) throws IOException {
+        output.writeInt(dataVersion);
+        output.writeShort(sizeX);
+        output.writeShort(sizeY);
+        output.writeShort(sizeZ);
+
+        output.writeShort(palette.size());
+        for (NbtCompound state : palette) {
+            output.writeUTF(state.getString(NAME_KEY));
+            NbtCompound properties = state.getCompound(PROPERTIES_KEY);
+            List<String> keys = new ArrayList<>(properties.getKeys());
+            Collections.sort(keys);
+            output.writeByte(keys.size());
+            for (String key : keys) {
+                output.writeUTF(key);
+                output.writeUTF(properties.getString(key));
+            }
+        }
+
+        long[] data = voxels.getData();
+        output.writeInt(data.length);
+        for (long l : data) {
+            output.writeLong(l);
+        }
+
+        output.writeInt(blockEntities.size());
+        for (Map.Entry<Integer, NbtCompound> e : blockEntities.entrySet()) {
+            output.writeInt(e.getKey());
+            if (canonical)
+                StructureHash.writeCanonical(e.getValue(), output);
+            else
+                NbtIo.write(e.getValue(), output);
+        }
+    }
+
+    /**
+     * Converts back to vanilla structure nbt.
+     */
+    public NbtCompound toNbt() {
+        NbtCompound nbt = new NbtCompound();
+        nbt.put(SIZE_KEY, intList(sizeX, sizeY, sizeZ));
+
+        NbtList paletteList = new NbtList();
+        for (NbtCompound state : palette) {
+            paletteList.add(state.copy());
+        }
+        nbt.put(PALETTE_KEY, paletteList);
+
+        NbtList blocks = new NbtList();
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                for (int x = 0; x < sizeX; x++) {
+                    int index = (y * sizeZ + z) * sizeX + x;
+                    int state = voxels.get(index);
+                    if (state == 0) continue;
+
+                    NbtCompound block = new NbtCompound();
+                    block.put(POS_KEY, intList(x, y, z));
+                    block.putInt(STATE_KEY, state - 1);
+                    NbtCompound blockEntity = blockEntities.get(index);
+                    if (blockEntity != null)
+                        block.put(NBT_KEY, blockEntity.copy());
+                    blocks.add(block);
+                }
+            }
+        }
+        nbt.put(BLOCKS_KEY, blocks);
+        nbt.put(ENTITIES_KEY, new NbtList());
+
+        if (dataVersion >= 0)
+            nbt.putInt(DATA_VERSION_KEY, dataVersion);
+        return nbt;
+    }
+
+    /**
+     * Only keeps name and string properties of a palette entry, null if it contains anything else.
+     */
+    @Nullable
+    private static NbtCompound normalizeState(NbtCompound state) {
+        if (!state.contains(NAME_KEY, NbtElement.STRING_TYPE)) return null;
+
+        NbtCompound normalized = new NbtCompound();
+        normalized.putString(NAME_KEY, state.getString(NAME_KEY));
+        NbtCompound properties = state.getCompound(PROPERTIES_KEY);
+        if (properties.getSize() > 255) return null;
+        for (String key : properties.getKeys()) {
+            if (!properties.contains(key, NbtElement.STRING_TYPE)) return null;
+        }
+        if (!properties.isEmpty())
+            normalized.put(PROPERTIES_KEY, properties.copy());
+        return normalized;
+    }
+
+    private static boolean isValidSize(int sizeX, int sizeY, int sizeZ) {
+        return sizeX >= 0 && sizeY >= 0 && sizeZ >= 0 && sizeX <= MAX_SIZE && sizeY <= MAX_SIZE && sizeZ <= MAX_SIZE;
+    }
+
+    private static int bitsFor(int paletteSize) {
+        // + 1 for the empty voxel
+        return Math.max(1, MathHelper.ceilLog2(paletteSize + 1));
+    }
+
+    private static NbtList intList(int... values) {
+        NbtList list = new NbtList();
+        for (int value : values) {
+            list.add(NbtInt.of(value));
+        }
+        return list;
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    public int getPaletteSize() {
+        return palette.size();
+    }
+}
@@ -0,0 +1,90 @@
+package be.immersivechess.structure;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtList;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content hash of structure nbt. Equal structures always get the same hash, regardless of the key order in the compounds
+ * or whether they went through a {@link PackedStructure} in between.
+ */
+public class StructureHash {
+
+    // Keyed on identity of the compound. Structure nbt is treated as immutable once it is created.
+    private static final Map<NbtCompound, String> CACHE = new MapMaker().weakKeys().makeMap();
+    private static final Map<NbtCompound, HashCode> FINGERPRINTS = new MapMaker().weakKeys().makeMap();
+
+    public static String of(NbtCompound structureNbt) {
+        return CACHE.computeIfAbsent(structureNbt, nbt -> compute(nbt, Hashing.sha256()).toString());
+    }
+
+    /**
+     * Cheaper, non-cryptographic variant of the hash. Only to be used as a key for in-memory caches.
+     */
+    public static HashCode fingerprint(NbtCompound structureNbt) {
+        return FINGERPRINTS.computeIfAbsent(structureNbt, nbt -> compute(nbt, Hashing.murmur3_128()));
+    }
+
+    /**
+     * Fingerprint if it was computed before, without computing it.
+     */
+    @Nullable
+    public static HashCode getCachedFingerprint(NbtCompound structureNbt) {
+        return FINGERPRINTS.get(structureNbt);
+    }
+
+    private static HashCode compute(NbtCompound structureNbt, HashFunction hashFunction) {
+        Hasher hasher = hashFunction.newHasher();
+        try {
+            DataOutputStream output = new DataOutputStream(Funnels.asOutputStream(hasher));
+            PackedStructure packed = PackedStructure.of(structureNbt);
+            if (packed != null)
+                packed.writeCanonical(output);
+            else
+                writeCanonical(structureNbt, output);
+        } catch (IOException e) {
+            // hasher streams don't throw
+            throw new UncheckedIOException(e);
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * Binary nbt with the keys of every compound in sorted order, so the output only depends on the content.
+     */
+    public static void writeCanonical(NbtElement element, DataOutput output) throws IOException {
+        output.writeByte(element.getType());
+        if (element instanceof NbtCompound compound) {
+            List<String> keys = new ArrayList<>(compound.getKeys());
+            Collections.sort(keys);
+            output.writeInt(keys.size());
+            for (String key : keys) {
+                output.writeUTF(key);
+                writeCanonical(compound.get(key), output);
+            }
+        } else if (element instanceof NbtList list) {
+            output.writeInt(list.size());
+            for (NbtElement child : list) {
+                writeCanonical(child, output);
+            }
+        } else {
+            element.write(output);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import be.immersivechess.ImmersiveChess;
 import be.immersivechess.logic.Piece;
 import ch.astorm.jchess.core.Color;
 import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.structure.StructureTemplate;
 import net.minecraft.structure.StructureTemplateManager;
@@ -40,25 +41,69 @@ public class StructureMap extends HashMap<Piece, NbtCompound> {
         return false;
     }
 
+    /**
+     * Registers the holder in the store for every structure in this map.
+     */
+    public void retain(StructureStore store, String holder) {
+        for (NbtCompound structureNbt : this.values()) {
+            store.retain(structureNbt, holder);
+        }
+    }
+
+    public void release(StructureStore store, String holder) {
+        for (NbtCompound structureNbt : this.values()) {
+            store.release(StructureHash.of(structureNbt), holder);
+        }
+    }
+
+    /**
+     * Only writes the hashes, the structures themselves are kept in the store (see {@link #retain(StructureStore, String)}).
+     */
     public NbtCompound writeNbt(NbtCompound nbt) {
         for (Entry<Piece, NbtCompound> e : this.entrySet()) {
-            nbt.put(e.getKey().toString(), e.getValue());
+            nbt.putString(e.getKey().toString(), StructureHash.of(e.getValue()));
         }
         return nbt;
     }
 
+    /**
+     * Structures that are still stored inline (from before the store existed) are upgraded and moved to the store.
+     * The holder is registered for every structure.
+     */
     @NotNull
-    public static StructureMap fromNbt(NbtCompound nbt) {
+    public static StructureMap fromNbt(NbtCompound nbt, StructureStore store, String holder) {
         StructureMap structures = new StructureMap();
 
         for (Piece piece : Piece.values()) {
-            if (nbt.contains(piece.toString()))
-                structures.put(piece, nbt.getCompound(piece.toString()));
+            String key = piece.toString();
+            if (nbt.contains(key, NbtElement.STRING_TYPE)) {
+                NbtCompound structureNbt = store.acquire(nbt.getString(key), holder);
+                if (structureNbt == null) {
+                    ImmersiveChess.LOGGER.error("Missing structure " + nbt.getString(key) + " for piece: " + piece);
+                    continue;
+                }
+                structures.put(piece, structureNbt);
+            } else if (nbt.contains(key)) {
+                NbtCompound structureNbt = StructureUpgrader.upgrade(PackedStructure.read(nbt.get(key)));
+                store.retain(structureNbt, holder);
+                structures.put(piece, structureNbt);
+            }
         }
 
         return structures;
     }
 
+    /**
+     * Whether the nbt still contains full structures instead of hashes.
+     */
+    public static boolean hasInlineStructures(NbtCompound nbt) {
+        for (Piece piece : Piece.values()) {
+            if (nbt.contains(piece.toString()) && !nbt.contains(piece.toString(), NbtElement.STRING_TYPE))
+                return true;
+        }
+        return false;
+    }
+
     private static StructureMap loadDefault(ServerWorld world) {
         StructureTemplateManager structureTemplateManager = world.getServer().getStructureTemplateManager();
         StructureMap structures = new StructureMap();
@@ -2,14 +2,13 @@ package be.immersivechess.structure;
 
 import be.immersivechess.world.MiniatureBlockRenderView;
 import com.google.common.collect.MapMaker;
-import net.minecraft.block.BlockState;
 import net.minecraft.structure.StructureTemplate;
 import net.minecraft.util.Util;
 import net.minecraft.util.function.BooleanBiFunction;
 import net.minecraft.util.math.*;
 import net.minecraft.util.shape.VoxelShape;
 import net.minecraft.util.shape.VoxelShapes;
-import net.minecraft.world.BlockRenderView;
+import org.jetbrains.annotations.Nullable;
 import org.joml.Quaternionf;
 import org.joml.Vector3d;
 import org.joml.Vector3f;
@@ -21,7 +20,10 @@ public class StructureOutlines {
 
     private static final float SCALE = 1f / 8f;
 
-    public static Optional<VoxelShape> getOrCreateOutline(StructureTemplate structure, Direction facing) {
+    public static Optional<VoxelShape> getOrCreateOutline(@Nullable StructureTemplate structure, Direction facing) {
+        // structure can still be decoding
+        if (structure == null) return Optional.empty();
+
         List<VoxelShape> outline = CACHE.get(structure);
         if (outline != null) return Optional.of(outline.get(facing.getHorizontal()));
 
@@ -77,31 +79,25 @@ public class StructureOutlines {
 
 
     private static VoxelShape createOutline(StructureTemplate structure) {
-        VoxelShape shape = VoxelShapes.empty();
-
-        Map<BlockPos, BlockState> blockStateMap = StructureHelper.buildBlockStateMap(structure);
-        BlockRenderView world = new MiniatureBlockRenderView(blockStateMap, Collections.emptyMap());
+        MiniatureBlockRenderView world = new MiniatureBlockRenderView(structure);
+        List<VoxelShape> boxes = new ArrayList<>();
 
-        for (Map.Entry<BlockPos, BlockState> entry : blockStateMap.entrySet()) {
-            BlockState state = entry.getValue();
-            if (state.isAir()) continue;
-
-            BlockPos blockPos = entry.getKey();
+        world.forEachBlockState((blockPos, state) -> {
+            if (state.isAir()) return;
 
             Vec3d offset = Vec3d.of(blockPos);
-            VoxelShape[] transformed = state.getOutlineShape(world, blockPos)
+            state.getOutlineShape(world, blockPos)
                     .offset(offset.x, offset.y, offset.z)
-                    .getBoundingBoxes().stream()
-                    .map(box -> VoxelShapes.cuboid(
+                    .getBoundingBoxes()
+                    .forEach(box -> boxes.add(VoxelShapes.cuboid(
                                     box.minX * SCALE, box.minY * SCALE, box.minZ * SCALE,
                                     box.maxX * SCALE, box.maxY * SCALE, box.maxZ * SCALE
                             )
-                    )
-                    .toArray(VoxelShape[]::new);
+                    ));
+        });
 
-            // faster than using union because we only do one simplify call at the end.
-            shape = Arrays.stream(transformed).reduce(shape, (first, second) -> VoxelShapes.combine(first, second, BooleanBiFunction.OR));
-        }
+        // faster than using union because we only do one simplify call at the end.
+        VoxelShape shape = boxes.stream().reduce(VoxelShapes.empty(), (first, second) -> VoxelShapes.combine(first, second, BooleanBiFunction.OR));
 
         return shape.simplify();
     }
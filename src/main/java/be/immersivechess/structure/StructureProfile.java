@@ -0,0 +1,107 @@
+package be.immersivechess.structure;
+
+import com.google.common.collect.MapMaker;
+import net.minecraft.block.BlockState;
+import net.minecraft.structure.StructureTemplate;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Immutable analysis of the content of a structure. Computed once per structure so that hot paths (like the emissive
+ * lighting check during chunk meshing) don't need to walk the block list of the structure.
+ */
+public final class StructureProfile {
+    public static final StructureProfile EMPTY = new StructureProfile(0, null, 0, 0, Collections.emptyList());
+
+    private static final Map<StructureTemplate, StructureProfile> CACHE = new MapMaker().weakKeys().makeMap();
+
+    private final int maxLuminance;
+    @Nullable
+    private final BlockBox bounds;
+    private final int blockCount;
+    private final int fluidCount;
+    private final List<BlockPos> blockEntityPositions;
+
+    private StructureProfile(int maxLuminance, @Nullable BlockBox bounds, int blockCount, int fluidCount, List<BlockPos> blockEntityPositions) {
+        this.maxLuminance = maxLuminance;
+        this.bounds = bounds;
+        this.blockCount = blockCount;
+        this.fluidCount = fluidCount;
+        this.blockEntityPositions = blockEntityPositions;
+    }
+
+    public static StructureProfile of(@Nullable StructureTemplate structure) {
+        if (structure == null) return EMPTY;
+        return CACHE.computeIfAbsent(structure, StructureProfile::compute);
+    }
+
+    private static StructureProfile compute(StructureTemplate structure) {
+        int maxLuminance = 0;
+        BlockBox bounds = null;
+        int blockCount = 0;
+        int fluidCount = 0;
+        List<BlockPos> blockEntityPositions = new ArrayList<>();
+
+        for (StructureTemplate.StructureBlockInfo info : StructureHelper.getBlockInfoList(structure)) {
+            BlockState state = info.state();
+            if (info.nbt() != null)
+                blockEntityPositions.add(info.pos().toImmutable());
+
+            if (state.isAir()) continue;
+
+            blockCount++;
+            if (!state.getFluidState().isEmpty())
+                fluidCount++;
+            maxLuminance = Math.max(maxLuminance, state.getLuminance());
+
+            if (bounds == null)
+                bounds = new BlockBox(info.pos());
+            else
+                bounds.encompass(info.pos());
+        }
+
+        return new StructureProfile(maxLuminance, bounds, blockCount, fluidCount, List.copyOf(blockEntityPositions));
+    }
+
+    /**
+     * Whether the structure contains at least one light source (can be fully hidden, this is not checked).
+     */
+    public boolean containsLightSource() {
+        return maxLuminance > 0;
+    }
+
+    public int getMaxLuminance() {
+        return maxLuminance;
+    }
+
+    /**
+     * Bounds of all non-air blocks. Empty when the structure has no blocks.
+     */
+    public Optional<BlockBox> getBounds() {
+        // BlockBox is mutable, hand out a copy
+        return Optional.ofNullable(bounds).map(b -> new BlockBox(b.getMinX(), b.getMinY(), b.getMinZ(), b.getMaxX(), b.getMaxY(), b.getMaxZ()));
+    }
+
+    public boolean isEmpty() {
+        return blockCount == 0;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getFluidCount() {
+        return fluidCount;
+    }
+
+    public List<BlockPos> getBlockEntityPositions() {
+        return blockEntityPositions;
+    }
+}
@@ -1,32 +1,109 @@
 package be.immersivechess.structure;
 
+import be.immersivechess.mixin.MixinStructureAccessor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.MapMaker;
-import net.fabricmc.api.EnvType;
-import net.fabricmc.api.Environment;
-import net.minecraft.datafixer.DataFixTypes;
-import net.minecraft.datafixer.Schemas;
+import com.google.common.hash.HashCode;
 import net.minecraft.nbt.NbtCompound;
-import net.minecraft.nbt.NbtHelper;
 import net.minecraft.registry.Registries;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.structure.StructureTemplate;
+import net.minecraft.util.Util;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
-@Environment(EnvType.CLIENT)
+/**
+ * Turns structure nbt into templates. Loaded templates are shared, so they should not be modified.
+ */
 public class StructureResolver {
+    // rough estimate of the memory used by a loaded template
+    private static final int BYTES_PER_BLOCK = 96;
+    private static final int BYTES_PER_BLOCK_ENTITY = 512;
+    private static final long MEMORY_BUDGET = 32 * 1024 * 1024;
 
-    private static final Map<NbtCompound, StructureTemplate> cache = new MapMaker().weakValues().makeMap();
+    // Keyed on the fingerprint of the content. Loads each structure only once, also when requested concurrently.
+    private static final Cache<HashCode, StructureTemplate> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MEMORY_BUDGET)
+            .weigher(StructureResolver::estimateSize)
+            .build();
+    private static final Map<StructureTemplate, HashCode> fingerprints = new MapMaker().weakKeys().makeMap();
+
+    // Set by the client, runs tasks on the client thread.
+    @Nullable
+    private static Executor clientExecutor;
 
     public static StructureTemplate getStructure(NbtCompound compound){
-        return cache.computeIfAbsent(compound, StructureResolver::loadStructure);
+        try {
+            HashCode fingerprint = StructureHash.fingerprint(compound);
+            return cache.get(fingerprint, () -> {
+                StructureTemplate structure = loadStructure(compound);
+                fingerprints.put(structure, fingerprint);
+                return structure;
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load structure", e.getCause());
+        }
+    }
+
+    /**
+     * Loads the template on a worker thread. The returned future is already completed when the template was loaded before.
+     */
+    public static CompletableFuture<StructureTemplate> getStructureAsync(NbtCompound compound) {
+        HashCode fingerprint = StructureHash.getCachedFingerprint(compound);
+        StructureTemplate structure = fingerprint == null ? null : cache.getIfPresent(fingerprint);
+        if (structure != null)
+            return CompletableFuture.completedFuture(structure);
+
+        return CompletableFuture.supplyAsync(() -> getStructure(compound), Util.getMainWorkerExecutor());
+    }
+
+    public static void setClientExecutor(Executor executor) {
+        clientExecutor = executor;
+    }
+
+    /**
+     * Executor of the thread that owns the given world, on which results of asynchronous loads should be applied.
+     * Null when the world has no such thread (e.g. miniature worlds on the server), then loading should happen in place.
+     */
+    @Nullable
+    public static Executor getMainExecutor(@Nullable World world) {
+        if (world instanceof ServerWorld serverWorld)
+            return serverWorld.getServer();
+        if (world != null && world.isClient)
+            return clientExecutor;
+        return null;
+    }
+
+    /**
+     * Fingerprint of the content of a template, stable across sessions.
+     */
+    public static HashCode getFingerprint(StructureTemplate structure) {
+        // templates that were not loaded through the resolver are serialized once
+        return fingerprints.computeIfAbsent(structure, s -> StructureHash.fingerprint(s.writeNbt(new NbtCompound())));
     }
 
     private static StructureTemplate loadStructure(NbtCompound structureNbt){
         StructureTemplate structure = new StructureTemplate();
-        int version = NbtHelper.getDataVersion(structureNbt, 500);
-        structureNbt = DataFixTypes.STRUCTURE.update(Schemas.getFixer(), structureNbt, version);
+        // only runs the data fixer for structures of an older version
+        structureNbt = StructureUpgrader.upgrade(structureNbt);
         structure.readNbt(Registries.BLOCK.getReadOnlyWrapper(), structureNbt);
 
         return structure;
     }
+
+    private static int estimateSize(HashCode fingerprint, StructureTemplate structure) {
+        int size = 0;
+        for (StructureTemplate.PalettedBlockInfoList blockInfoList : ((MixinStructureAccessor) structure).getBlockInfoLists()) {
+            for (StructureTemplate.StructureBlockInfo info : blockInfoList.getAll()) {
+                size += info.nbt() == null ? BYTES_PER_BLOCK : BYTES_PER_BLOCK + BYTES_PER_BLOCK_ENTITY;
+            }
+        }
+        return Math.max(1, size);
+    }
 }
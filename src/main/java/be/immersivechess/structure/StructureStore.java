@@ -0,0 +1,262 @@
+package be.immersivechess.structure;
+
+import be.immersivechess.ImmersiveChess;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.nbt.NbtString;
+import net.minecraft.util.Util;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.PersistentState;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content addressed storage of structure nbt, shared by all games and block entities of a server.
+ * Game states and block entities only persist the hash of a structure and are registered as a holder of it in this
+ * store, e.g. by the position of a block entity. Holders are added again whenever they are loaded, so copies of a block
+ * entity (clone, structure blocks, world generation) hold the structure as well, while a holder is never counted twice.
+ * Holders are saved separately from the chunks that hold the references, so they can be missing after a crash.
+ * Structures without holders are therefore only dropped when the store is loaded, once they have not been held for
+ * {@link #GRACE_PERIOD}, unless they are discarded explicitly.
+ * Structures of an older game version are upgraded on load, the hash they were saved under is kept as an alias.
+ */
+public class StructureStore extends PersistentState {
+    // constants
+    private static final String LOCATION = ImmersiveChess.MOD_ID + "/structures";
+    private static final long GRACE_PERIOD = 30L * 24 * 60 * 60 * 1000;
+
+    // Nbt keys
+    private static final String ENTRIES_KEY = "Entries";
+    private static final String HASH_KEY = "Hash";
+    private static final String STRUCTURE_KEY = "Structure";
+    private static final String HOLDERS_KEY = "Holders";
+    private static final String ALIASES_KEY = "Aliases";
+    private static final String UNUSED_SINCE_KEY = "UnusedSince";
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    // hash of a structure before it was upgraded -> hash of the upgraded structure
+    private final Map<String, String> aliases = new HashMap<>();
+
+    public static StructureStore get(MinecraftServer server) {
+        Type<StructureStore> type = new Type<>(StructureStore::new, StructureStore::fromNbt, null);
+        return server.getOverworld().getPersistentStateManager().getOrCreate(type, LOCATION);
+    }
+
+    /**
+     * Makes sure the structure is present in the store without registering a holder.
+     * Returns the hash by which the structure can be retrieved.
+     */
+    public String put(NbtCompound structureNbt) {
+        String hash = StructureHash.of(structureNbt);
+        getOrCreateEntry(hash, structureNbt);
+        return hash;
+    }
+
+    /**
+     * Holder key of a block entity.
+     */
+    public static String getHolder(World world, BlockPos pos) {
+        return world.getRegistryKey().getValue() + "@" + pos.asLong();
+    }
+
+    /**
+     * Adds the structure when needed and registers the holder for it.
+     */
+    public String retain(NbtCompound structureNbt, String holder) {
+        String hash = StructureHash.of(structureNbt);
+        hold(getOrCreateEntry(hash, structureNbt), holder);
+        return hash;
+    }
+
+    /**
+     * Registers the holder for a structure that is already stored, for holders that are loaded from a save.
+     * Returns null when the structure is missing.
+     */
+    @Nullable
+    public NbtCompound acquire(String hash, String holder) {
+        Entry entry = entries.get(resolve(hash));
+        if (entry == null)
+            return null;
+        hold(entry, holder);
+        return entry.structure;
+    }
+
+    private void hold(Entry entry, String holder) {
+        if (entry.holders.add(holder)) {
+            entry.unusedSince = 0;
+            markDirty();
+        }
+    }
+
+    public void release(String hash, String holder) {
+        Entry entry = entries.get(resolve(hash));
+        if (entry == null) {
+            ImmersiveChess.LOGGER.warn("Released unknown structure " + hash);
+            return;
+        }
+        if (!entry.holders.remove(holder))
+            return;
+        if (entry.holders.isEmpty())
+            entry.unusedSince = Util.getEpochTimeMs();
+        markDirty();
+    }
+
+    /**
+     * Removes the structure right away when it has no holders, without the grace period. For structures that can be
+     * derived again, such as intermediate versions of a structure that is being built.
+     */
+    public void discardIfUnused(String hash) {
+        String resolved = resolve(hash);
+        Entry entry = entries.get(resolved);
+        if (entry == null || !entry.holders.isEmpty())
+            return;
+        entries.remove(resolved);
+        aliases.values().removeIf(resolved::equals);
+        markDirty();
+    }
+
+    /**
+     * The returned nbt is shared and should not be modified.
+     */
+    @Nullable
+    public NbtCompound get(String hash) {
+        Entry entry = entries.get(resolve(hash));
+        return entry == null ? null : entry.structure;
+    }
+
+    public boolean contains(String hash) {
+        return entries.containsKey(resolve(hash));
+    }
+
+    /**
+     * Current hash of a structure that may have been stored under another hash before it was upgraded.
+     */
+    public String resolve(String hash) {
+        return aliases.getOrDefault(hash, hash);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private Entry getOrCreateEntry(String hash, NbtCompound structureNbt) {
+        return entries.computeIfAbsent(hash, h -> {
+            markDirty();
+            Entry entry = new Entry(structureNbt);
+            entry.unusedSince = Util.getEpochTimeMs();
+            return entry;
+        });
+    }
+
+    private void removeUnused() {
+        long now = Util.getEpochTimeMs();
+        int sizeBefore = entries.size();
+        entries.values().removeIf(e -> e.holders.isEmpty() && now - e.unusedSince > GRACE_PERIOD);
+        if (entries.size() == sizeBefore)
+            return;
+
+        ImmersiveChess.LOGGER.info("Removed " + (sizeBefore - entries.size()) + " structures that were unused for " + GRACE_PERIOD / (24 * 60 * 60 * 1000) + " days");
+        aliases.values().removeIf(hash -> !entries.containsKey(hash));
+        markDirty();
+    }
+
+    private static StructureStore fromNbt(NbtCompound nbt) {
+        StructureStore store = new StructureStore();
+        NbtCompound aliasesNbt = nbt.getCompound(ALIASES_KEY);
+        for (String hash : aliasesNbt.getKeys()) {
+            store.aliases.put(hash, aliasesNbt.getString(hash));
+        }
+
+        int upgraded = 0;
+        NbtList list = nbt.getList(ENTRIES_KEY, NbtElement.COMPOUND_TYPE);
+        for (int i = 0; i < list.size(); i++) {
+            NbtCompound entryNbt = list.getCompound(i);
+            NbtCompound structureNbt = PackedStructure.read(entryNbt.get(STRUCTURE_KEY));
+            String hash = entryNbt.getString(HASH_KEY);
+
+            NbtCompound upgradedNbt = StructureUpgrader.upgrade(structureNbt);
+            if (upgradedNbt != structureNbt) {
+                String upgradedHash = StructureHash.of(upgradedNbt);
+                store.addAlias(hash, upgradedHash);
+                hash = upgradedHash;
+                upgraded++;
+            }
+
+            // an upgraded structure can be equal to one that was already stored
+            Entry entry = store.entries.computeIfAbsent(hash, h -> new Entry(upgradedNbt));
+            NbtList holders = entryNbt.getList(HOLDERS_KEY, NbtElement.STRING_TYPE);
+            for (int j = 0; j < holders.size(); j++)
+                entry.holders.add(holders.getString(j));
+            entry.unusedSince = Math.max(entry.unusedSince, entryNbt.getLong(UNUSED_SINCE_KEY));
+        }
+
+        // saves from before the grace period start it now
+        long now = Util.getEpochTimeMs();
+        for (Entry entry : store.entries.values()) {
+            if (!entry.holders.isEmpty())
+                entry.unusedSince = 0;
+            else if (entry.unusedSince == 0)
+                entry.unusedSince = now;
+        }
+        store.removeUnused();
+
+        if (upgraded > 0) {
+            ImmersiveChess.LOGGER.info("Upgraded " + upgraded + " stored structures to data version " + StructureUpgrader.getCurrentDataVersion());
+            store.markDirty();
+        }
+        return store;
+    }
+
+    private void addAlias(String hash, String upgradedHash) {
+        aliases.put(hash, upgradedHash);
+        // older aliases now point to the upgraded structure as well
+        aliases.replaceAll((h, target) -> target.equals(hash) ? upgradedHash : target);
+    }
+
+    @Override
+    public NbtCompound writeNbt(NbtCompound nbt) {
+        NbtList list = new NbtList();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            NbtCompound entryNbt = new NbtCompound();
+            entryNbt.putString(HASH_KEY, e.getKey());
+            entryNbt.put(STRUCTURE_KEY, PackedStructure.write(e.getValue().structure));
+            NbtList holders = new NbtList();
+            e.getValue().holders.forEach(holder -> holders.add(NbtString.of(holder)));
+            entryNbt.put(HOLDERS_KEY, holders);
+            if (e.getValue().holders.isEmpty())
+                entryNbt.putLong(UNUSED_SINCE_KEY, e.getValue().unusedSince);
+            list.add(entryNbt);
+        }
+        nbt.put(ENTRIES_KEY, list);
+
+        NbtCompound aliasesNbt = new NbtCompound();
+        aliases.forEach(aliasesNbt::putString);
+        nbt.put(ALIASES_KEY, aliasesNbt);
+        return nbt;
+    }
+
+    @Override
+    public void save(File file) {
+        file.getParentFile().mkdirs();
+        super.save(file);
+    }
+
+    private static class Entry {
+        private final NbtCompound structure;
+        private final Set<String> holders = new HashSet<>();
+        // epoch millis since which there are no holders, 0 while held
+        private long unusedSince;
+
+        private Entry(NbtCompound structure) {
+            this.structure = structure;
+        }
+    }
+}
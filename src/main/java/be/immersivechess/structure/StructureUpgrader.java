@@ -0,0 +1,67 @@
+package be.immersivechess.structure;
+
+import be.immersivechess.ImmersiveChess;
+import com.google.common.collect.MapMaker;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.minecraft.SharedConstants;
+import net.minecraft.datafixer.DataFixTypes;
+import net.minecraft.datafixer.Schemas;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtHelper;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the data fixer on structures saved by an older game version, so it only has to run once per structure instead of
+ * on every load. Structures of the current version are returned as is.
+ */
+public class StructureUpgrader {
+    // version assumed by vanilla for structures without one
+    private static final int DEFAULT_DATA_VERSION = 500;
+
+    private static final Map<NbtCompound, NbtCompound> UPGRADED = new MapMaker().weakKeys().makeMap();
+    private static final AtomicInteger migrated = new AtomicInteger();
+
+    public static void onInitialize() {
+        ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+            if (getMigratedCount() > 0)
+                ImmersiveChess.LOGGER.info("Upgraded " + getMigratedCount() + " structures to data version " + getCurrentDataVersion());
+        });
+    }
+
+    public static int getCurrentDataVersion() {
+        return SharedConstants.getGameVersion().getSaveVersion().getId();
+    }
+
+    /**
+     * Empty compounds (default structure) never need an upgrade.
+     */
+    public static boolean needsUpgrade(NbtCompound structureNbt) {
+        return !structureNbt.isEmpty() && NbtHelper.getDataVersion(structureNbt, DEFAULT_DATA_VERSION) < getCurrentDataVersion();
+    }
+
+    /**
+     * Returns the structure at the current data version. The given nbt is not modified, upgraded copies are shared.
+     */
+    public static NbtCompound upgrade(NbtCompound structureNbt) {
+        if (!needsUpgrade(structureNbt))
+            return structureNbt;
+        return UPGRADED.computeIfAbsent(structureNbt, StructureUpgrader::update);
+    }
+
+    private static NbtCompound update(NbtCompound structureNbt) {
+        int version = NbtHelper.getDataVersion(structureNbt, DEFAULT_DATA_VERSION);
+        NbtCompound upgraded = DataFixTypes.STRUCTURE.update(Schemas.getFixer(), structureNbt.copy(), version);
+        NbtHelper.putDataVersion(upgraded);
+        migrated.incrementAndGet();
+        return upgraded;
+    }
+
+    /**
+     * Number of structures upgraded since the game started.
+     */
+    public static int getMigratedCount() {
+        return migrated.get();
+    }
+}
@@ -10,6 +10,7 @@ import be.immersivechess.item.PieceItem;
 import be.immersivechess.logic.MultiblockBoard;
 import be.immersivechess.logic.Piece;
 import be.immersivechess.structure.StructureMap;
+import be.immersivechess.structure.StructureStore;
 import ch.astorm.jchess.JChessGame;
 import ch.astorm.jchess.core.*;
 import ch.astorm.jchess.core.entities.King;
@@ -130,7 +131,9 @@ public class ChessGameState extends PersistentState {
 
     public void removePlayer(Color color) {
         setPlayerName(color, null);
-        playerStructures.remove(color);
+        StructureMap removed = playerStructures.remove(color);
+        if (removed != null)
+            removed.release(getStructureStore(), getStructureHolder(color));
         setRenderOption(color, PieceRenderOption.DEFAULT);
 
 
@@ -198,7 +201,11 @@ public class ChessGameState extends PersistentState {
     }
 
     public void setStructures(Color color, StructureMap structureMap) {
-        playerStructures.put(color, structureMap);
+        // released first, structures in both maps stay held
+        StructureMap previous = playerStructures.put(color, structureMap);
+        if (previous != null)
+            previous.release(getStructureStore(), getStructureHolder(color));
+        structureMap.retain(getStructureStore(), getStructureHolder(color));
         if (structureMap.hasAnyOf(color))
             setRenderOption(color, PieceRenderOption.OWN);
 
@@ -206,6 +213,17 @@ public class ChessGameState extends PersistentState {
         markDirty();
     }
 
+    private StructureStore getStructureStore() {
+        return StructureStore.get(world.getServer());
+    }
+
+    /**
+     * Holder key in the {@link StructureStore} of the structures of a player.
+     */
+    private String getStructureHolder(Color color) {
+        return "game/" + getGameId() + "/" + color;
+    }
+
     public PieceRenderOption getRenderOption(Color color) {
         return renderOptions.get(color);
     }
@@ -700,10 +718,15 @@ public class ChessGameState extends PersistentState {
             JChessGame game = new PGNReader(new StringReader(pgn)).readGame();
             ChessGameState state = new ChessGameState(world, game, board, minedSquare, drawOfferedBy);
 
+            StructureStore store = state.getStructureStore();
             if (nbt.contains(WHITE_PLAYER_STRUCTURES_KEY))
-                state.playerStructures.put(Color.WHITE, StructureMap.fromNbt(nbt.getCompound(WHITE_PLAYER_STRUCTURES_KEY)));
+                state.playerStructures.put(Color.WHITE, StructureMap.fromNbt(nbt.getCompound(WHITE_PLAYER_STRUCTURES_KEY), store, state.getStructureHolder(Color.WHITE)));
             if (nbt.contains(BLACK_PLAYER_STRUCTURES_KEY))
-                state.playerStructures.put(Color.BLACK, StructureMap.fromNbt(nbt.getCompound(BLACK_PLAYER_STRUCTURES_KEY)));
+                state.playerStructures.put(Color.BLACK, StructureMap.fromNbt(nbt.getCompound(BLACK_PLAYER_STRUCTURES_KEY), store, state.getStructureHolder(Color.BLACK)));
+
+            // structures were moved to the store, save hashes instead
+            if (StructureMap.hasInlineStructures(nbt.getCompound(WHITE_PLAYER_STRUCTURES_KEY)) || StructureMap.hasInlineStructures(nbt.getCompound(BLACK_PLAYER_STRUCTURES_KEY)))
+                state.markDirty();
 
             if (nbt.contains(WHITE_PIECES_RENDER_OPTION_KEY))
                 state.renderOptions.put(Color.WHITE, PieceRenderOption.valueOf(nbt.getString(WHITE_PIECES_RENDER_OPTION_KEY)));
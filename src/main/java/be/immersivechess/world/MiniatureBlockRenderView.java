@@ -1,82 +1,117 @@
 package be.immersivechess.world;
 
 import be.immersivechess.structure.StructureHelper;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.fluid.FluidState;
-import net.minecraft.fluid.Fluids;
+import net.minecraft.nbt.NbtCompound;
 import net.minecraft.structure.StructureTemplate;
 import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.ColorHelper;
 import net.minecraft.util.math.Direction;
 import net.minecraft.world.BlockRenderView;
-import net.minecraft.world.BlockView;
+import net.minecraft.world.LightType;
 import net.minecraft.world.biome.ColorResolver;
-import net.minecraft.world.chunk.ChunkProvider;
-import net.minecraft.world.chunk.light.ChunkSkyLight;
-import net.minecraft.world.chunk.light.LightSourceView;
 import net.minecraft.world.chunk.light.LightingProvider;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.BiConsumer;
 
-public class MiniatureBlockRenderView implements BlockRenderView, LightSourceView {
-
-    private final Map<BlockPos, BlockState> blockStates;
-    private final Map<BlockPos, BlockEntity> blockEntities;
-
-    private final ChunkSkyLight chunkSkyLight;
-    private final LightingProvider lightingProvider;
-
-    public MiniatureBlockRenderView(StructureTemplate structure){
-        this(StructureHelper.buildBlockStateMap(structure), StructureHelper.buildBlockEntityMap(structure));
-    }
-
-    public MiniatureBlockRenderView(Map<BlockPos, BlockState> blockStates, Map<BlockPos, BlockEntity> blockEntities) {
-        this.blockStates = blockStates;
-        this.blockEntities = blockEntities;
-
-        chunkSkyLight = new ChunkSkyLight(this);
-        lightingProvider = createLightingProvider();
-    }
-
-    public Map<BlockPos, BlockState> getBlockStates(){
-        return blockStates;
-    }
-
-    public Map<BlockPos, BlockEntity> getBlockEntities(){
-        return blockEntities;
-    }
-
-    private LightingProvider createLightingProvider() {
-        LightSourceView view = this;
-        ChunkProvider chunkProvider = new ChunkProvider() {
-            @Nullable
-            @Override
-            public LightSourceView getChunk(int chunkX, int chunkZ) {
-                if (chunkX == 0 && chunkZ == 0)
-                    return view;
-                return null;
+/**
+ * Read only view of a structure for rendering and outlines. Block states are stored as palette indices in an array that
+ * spans the bounds of the structure, positions outside of it or missing from the structure are void air.
+ * Block entities and lighting ({@link MiniatureLight}) are only created when they are requested.
+ */
+public class MiniatureBlockRenderView implements BlockRenderView {
+    private static final BlockState VOID = Blocks.VOID_AIR.getDefaultState();
+
+    private final int minX, minY, minZ;
+    private final int sizeX, sizeY, sizeZ;
+
+    // index 0 is void
+    private final List<BlockState> palette = new ArrayList<>();
+    private final short[] blocks;
+
+    // nbt of block entities by index, the entities are created on first use
+    private final Int2ObjectMap<NbtCompound> blockEntityNbt = new Int2ObjectOpenHashMap<>();
+    private final Int2ObjectMap<BlockEntity> blockEntities = new Int2ObjectOpenHashMap<>();
+
+    private volatile MiniatureLight light;
+
+    public MiniatureBlockRenderView(StructureTemplate structure) {
+        List<StructureTemplate.StructureBlockInfo> blockInfos = StructureHelper.getBlockInfoList(structure);
+
+        int minX = 0, minY = 0, minZ = 0, maxX = -1, maxY = -1, maxZ = -1;
+        if (!blockInfos.isEmpty()) {
+            minX = minY = minZ = Integer.MAX_VALUE;
+            maxX = maxY = maxZ = Integer.MIN_VALUE;
+            for (StructureTemplate.StructureBlockInfo info : blockInfos) {
+                BlockPos pos = info.pos();
+                minX = Math.min(minX, pos.getX());
+                minY = Math.min(minY, pos.getY());
+                minZ = Math.min(minZ, pos.getZ());
+                maxX = Math.max(maxX, pos.getX());
+                maxY = Math.max(maxY, pos.getY());
+                maxZ = Math.max(maxZ, pos.getZ());
             }
-
-            @Override
-            public BlockView getWorld() {
-                return view;
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        sizeX = maxX - minX + 1;
+        sizeY = maxY - minY + 1;
+        sizeZ = maxZ - minZ + 1;
+
+        blocks = new short[sizeX * sizeY * sizeZ];
+        Object2IntMap<BlockState> paletteIndices = new Object2IntOpenHashMap<>();
+        palette.add(VOID);
+        paletteIndices.put(VOID, 0);
+        for (StructureTemplate.StructureBlockInfo info : blockInfos) {
+            int index = index(info.pos().getX(), info.pos().getY(), info.pos().getZ());
+            int paletteIndex = paletteIndices.getOrDefault(info.state(), -1);
+            if (paletteIndex < 0) {
+                paletteIndex = palette.size();
+                palette.add(info.state());
+                paletteIndices.put(info.state(), paletteIndex);
             }
-        };
-
-        // always use skylight, because this would have to depend on where the piece is built and we don't store this info.
-        LightingProvider p = new LightingProvider(chunkProvider, true, true);
+            blocks[index] = (short) paletteIndex;
+            if (info.nbt() != null)
+                blockEntityNbt.put(index, info.nbt());
+        }
+    }
 
-        // enable light updates for the chunk
-        p.setSectionStatus(new BlockPos(0, 0, 0), false);
-        p.propagateLight(new ChunkPos(0, 0));
-        p.doLightUpdates();
+    /**
+     * Calls the consumer for every block in the structure, including air.
+     */
+    public void forEachBlockState(BiConsumer<BlockPos, BlockState> consumer) {
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                for (int x = 0; x < sizeX; x++) {
+                    int paletteIndex = blocks[(y * sizeZ + z) * sizeX + x];
+                    if (paletteIndex != 0)
+                        consumer.accept(new BlockPos(minX + x, minY + y, minZ + z), palette.get(paletteIndex));
+                }
+            }
+        }
+    }
 
-        return p;
+    /**
+     * Calls the consumer for every block entity in the structure that could be created.
+     */
+    public void forEachBlockEntity(BiConsumer<BlockPos, BlockEntity> consumer) {
+        for (int index : blockEntityNbt.keySet().toIntArray()) {
+            BlockPos pos = new BlockPos(minX + index % sizeX, minY + index / (sizeX * sizeZ), minZ + (index / sizeX) % sizeZ);
+            BlockEntity blockEntity = getBlockEntity(pos);
+            if (blockEntity != null)
+                consumer.accept(pos, blockEntity);
+        }
     }
 
     @Override
@@ -87,7 +122,30 @@ public class MiniatureBlockRenderView implements BlockRenderView, LightSourceVie
 
     @Override
     public LightingProvider getLightingProvider() {
-        return lightingProvider;
+        // light is served by getLightLevel
+        return MiniatureLight.EMPTY_PROVIDER;
+    }
+
+    @Override
+    public int getLightLevel(LightType type, BlockPos pos) {
+        return getLight().get(type, pos);
+    }
+
+    @Override
+    public int getBaseLightLevel(BlockPos pos, int ambientDarkness) {
+        return getLight().getBaseLightLevel(pos, ambientDarkness);
+    }
+
+    private MiniatureLight getLight() {
+        MiniatureLight light = this.light;
+        if (light == null) {
+            synchronized (this) {
+                if (this.light == null)
+                    this.light = new MiniatureLight(this, minX, minY, minZ, sizeX, sizeY, sizeZ);
+                light = this.light;
+            }
+        }
+        return light;
     }
 
     @Override
@@ -109,12 +167,26 @@ public class MiniatureBlockRenderView implements BlockRenderView, LightSourceVie
     @Nullable
     @Override
     public BlockEntity getBlockEntity(BlockPos pos) {
-        return blockEntities.get(pos);
+        int index = index(pos.getX(), pos.getY(), pos.getZ());
+        if (index < 0) return null;
+
+        NbtCompound nbt = blockEntityNbt.get(index);
+        if (nbt == null) return null;
+
+        synchronized (blockEntities) {
+            if (blockEntities.containsKey(index))
+                return blockEntities.get(index);
+            // null when the nbt is invalid, which is remembered as well
+            BlockEntity blockEntity = BlockEntity.createFromNbt(pos.toImmutable(), palette.get(blocks[index]), nbt);
+            blockEntities.put(index, blockEntity);
+            return blockEntity;
+        }
     }
 
     @Override
     public BlockState getBlockState(BlockPos pos) {
-        return blockStates.getOrDefault(pos, Blocks.VOID_AIR.getDefaultState());
+        int index = index(pos.getX(), pos.getY(), pos.getZ());
+        return index < 0 ? VOID : palette.get(blocks[index]);
     }
 
     @Override
@@ -122,15 +194,15 @@ public class MiniatureBlockRenderView implements BlockRenderView, LightSourceVie
         return getBlockState(pos).getFluidState();
     }
 
-    @Override
-    public void forEachLightSource(BiConsumer<BlockPos, BlockState> callback) {
-        blockStates.forEach((pos, bs) -> {
-            if (bs.getLuminance() > 0) callback.accept(pos, bs);
-        });
-    }
-
-    @Override
-    public ChunkSkyLight getChunkSkyLight() {
-        return chunkSkyLight;
+    /**
+     * Index in the block array, or -1 outside of the bounds.
+     */
+    private int index(int x, int y, int z) {
+        x -= minX;
+        y -= minY;
+        z -= minZ;
+        if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ)
+            return -1;
+        return (y * sizeZ + z) * sizeX + x;
     }
 }
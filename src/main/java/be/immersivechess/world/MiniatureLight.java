@@ -0,0 +1,178 @@
+package be.immersivechess.world;
+
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.BlockView;
+import net.minecraft.world.LightType;
+import net.minecraft.world.chunk.ChunkProvider;
+import net.minecraft.world.chunk.light.LightSourceView;
+import net.minecraft.world.chunk.light.LightingProvider;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Block and sky light of a miniature, computed once by flood fill over its bounds. Both levels of a block are packed in
+ * a single byte. Light spreads like in vanilla: it decreases by the opacity of the block it enters (at least 1), except
+ * full sky light going straight down through transparent blocks.
+ * Everything outside the bounds is open sky, except below the miniature which is dark.
+ */
+public class MiniatureLight {
+    private static final int MAX_LIGHT = 15;
+
+    /**
+     * Light provider without block or sky light, for miniatures that answer light queries themselves.
+     */
+    public static final LightingProvider EMPTY_PROVIDER = new LightingProvider(new ChunkProvider() {
+        @Nullable
+        @Override
+        public LightSourceView getChunk(int chunkX, int chunkZ) {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public BlockView getWorld() {
+            return null;
+        }
+    }, false, false);
+
+    private final int minX, minY, minZ;
+    private final int sizeX, sizeY, sizeZ;
+    // sky light in the high nibble, block light in the low nibble
+    private final byte[] light;
+    // opacity of each block, at least 1
+    private final byte[] attenuation;
+    private final boolean[] transparent;
+
+    public MiniatureLight(BlockView world, BlockBox bounds) {
+        this(world, bounds.getMinX(), bounds.getMinY(), bounds.getMinZ(), bounds.getBlockCountX(), bounds.getBlockCountY(), bounds.getBlockCountZ());
+    }
+
+    public MiniatureLight(BlockView world, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+
+        int volume = sizeX * sizeY * sizeZ;
+        light = new byte[volume];
+        attenuation = new byte[volume];
+        transparent = new boolean[volume];
+
+        IntArrayFIFOQueue blockQueue = new IntArrayFIFOQueue();
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+        for (int i = 0; i < volume; i++) {
+            setPos(pos, i);
+            BlockState state = world.getBlockState(pos);
+            int opacity = state.getOpacity(world, pos);
+            attenuation[i] = (byte) Math.max(1, opacity);
+            transparent[i] = opacity == 0;
+
+            int luminance = state.getLuminance();
+            if (luminance > 0) {
+                setLevel(i, LightType.BLOCK, luminance);
+                blockQueue.enqueue(i);
+            }
+        }
+
+        spread(blockQueue, LightType.BLOCK);
+        spread(seedSkyLight(), LightType.SKY);
+    }
+
+    public int get(LightType type, BlockPos pos) {
+        int x = pos.getX() - minX;
+        int y = pos.getY() - minY;
+        int z = pos.getZ() - minZ;
+        if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ)
+            return type == LightType.SKY && y >= 0 ? MAX_LIGHT : 0;
+        return getLevel(index(x, y, z), type);
+    }
+
+    /**
+     * Same as {@link LightingProvider#getLight}.
+     */
+    public int getBaseLightLevel(BlockPos pos, int ambientDarkness) {
+        return Math.max(get(LightType.BLOCK, pos), get(LightType.SKY, pos) - ambientDarkness);
+    }
+
+    /**
+     * Sky light entering the bounds from above and from the sides.
+     */
+    private IntArrayFIFOQueue seedSkyLight() {
+        IntArrayFIFOQueue queue = new IntArrayFIFOQueue();
+        for (int i = 0; i < light.length; i++) {
+            int x = i % sizeX;
+            int z = (i / sizeX) % sizeZ;
+            int y = i / (sizeX * sizeZ);
+
+            int level = 0;
+            if (y == sizeY - 1)
+                level = enter(MAX_LIGHT, i, Direction.DOWN, LightType.SKY);
+            if (x == 0 || z == 0 || x == sizeX - 1 || z == sizeZ - 1)
+                level = Math.max(level, MAX_LIGHT - attenuation[i]);
+
+            if (level > 0) {
+                setLevel(i, LightType.SKY, level);
+                queue.enqueue(i);
+            }
+        }
+        return queue;
+    }
+
+    private void spread(IntArrayFIFOQueue queue, LightType type) {
+        while (!queue.isEmpty()) {
+            int i = queue.dequeueInt();
+            int level = getLevel(i, type);
+            if (level <= 1) continue;
+
+            int x = i % sizeX;
+            int z = (i / sizeX) % sizeZ;
+            int y = i / (sizeX * sizeZ);
+            for (Direction direction : Direction.values()) {
+                int nx = x + direction.getOffsetX();
+                int ny = y + direction.getOffsetY();
+                int nz = z + direction.getOffsetZ();
+                if (nx < 0 || ny < 0 || nz < 0 || nx >= sizeX || ny >= sizeY || nz >= sizeZ) continue;
+
+                int neighbour = index(nx, ny, nz);
+                int neighbourLevel = enter(level, neighbour, direction, type);
+                if (neighbourLevel > getLevel(neighbour, type)) {
+                    setLevel(neighbour, type, neighbourLevel);
+                    queue.enqueue(neighbour);
+                }
+            }
+        }
+    }
+
+    /**
+     * Level of light that moves into the block in the given direction.
+     */
+    private int enter(int level, int index, Direction direction, LightType type) {
+        if (type == LightType.SKY && level == MAX_LIGHT && direction == Direction.DOWN && transparent[index])
+            return MAX_LIGHT;
+        return Math.max(0, level - attenuation[index]);
+    }
+
+    private int getLevel(int index, LightType type) {
+        int packed = light[index] & 0xFF;
+        return type == LightType.SKY ? packed >> 4 : packed & 0xF;
+    }
+
+    private void setLevel(int index, LightType type, int level) {
+        int packed = light[index] & 0xFF;
+        packed = type == LightType.SKY ? (packed & 0x0F) | (level << 4) : (packed & 0xF0) | level;
+        light[index] = (byte) packed;
+    }
+
+    private void setPos(BlockPos.Mutable pos, int index) {
+        pos.set(minX + index % sizeX, minY + index / (sizeX * sizeZ), minZ + (index / sizeX) % sizeZ);
+    }
+
+    private int index(int x, int y, int z) {
+        return (y * sizeZ + z) * sizeX + x;
+    }
+}
@@ -23,15 +23,12 @@ import net.minecraft.structure.StructureTemplate;
 import net.minecraft.util.math.*;
 import net.minecraft.util.profiler.Profiler;
 import net.minecraft.world.BlockRenderView;
-import net.minecraft.world.BlockView;
+import net.minecraft.world.LightType;
 import net.minecraft.world.MutableWorldProperties;
 import net.minecraft.world.World;
 import net.minecraft.world.biome.Biome;
 import net.minecraft.world.biome.ColorResolver;
 import net.minecraft.world.chunk.ChunkManager;
-import net.minecraft.world.chunk.ChunkProvider;
-import net.minecraft.world.chunk.light.ChunkSkyLight;
-import net.minecraft.world.chunk.light.LightSourceView;
 import net.minecraft.world.chunk.light.LightingProvider;
 import net.minecraft.world.dimension.DimensionType;
 import net.minecraft.world.entity.EntityLookup;
@@ -41,15 +38,13 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiConsumer;
 
-public class MiniatureWorld extends World implements LightSourceView {
+public class MiniatureWorld extends World {
 
     private final Map<BlockPos, BlockState> blockStates;
     private final Map<BlockPos, BlockEntity> blockEntities;
 
-    private final ChunkSkyLight chunkSkyLight;
-    private final LightingProvider lightingProvider;
+    private final MiniatureLight light;
 
     public MiniatureWorld(World globalWorld, StructureTemplate structure) {
         this(globalWorld, StructureHelper.buildBlockStateMap(structure), StructureHelper.buildBlockEntityMap(structure));
@@ -65,8 +60,7 @@ public class MiniatureWorld extends World implements LightSourceView {
 
         this.blockEntities.forEach((pos, be) -> be.setWorld(this));
 
-        chunkSkyLight = new ChunkSkyLight(this);
-        lightingProvider = createLightingProvider();
+        light = new MiniatureLight(this, BlockBox.encompassPositions(blockStates.keySet()).orElse(new BlockBox(BlockPos.ORIGIN)));
     }
 
     public Map<BlockPos, BlockState> getBlockStates() {
@@ -77,34 +71,6 @@ public class MiniatureWorld extends World implements LightSourceView {
         return blockEntities;
     }
 
-    private LightingProvider createLightingProvider() {
-        LightSourceView view = this;
-        ChunkProvider chunkProvider = new ChunkProvider() {
-            @Nullable
-            @Override
-            public LightSourceView getChunk(int chunkX, int chunkZ) {
-                if (chunkX == 0 && chunkZ == 0)
-                    return view;
-                return null;
-            }
-
-            @Override
-            public BlockView getWorld() {
-                return view;
-            }
-        };
-
-        // always use skylight, because this would have to depend on where the piece is built and we don't store this info.
-        LightingProvider p = new LightingProvider(chunkProvider, true, true);
-
-        // enable light updates for the chunk
-        p.setSectionStatus(new BlockPos(0, 0, 0), false);
-        p.propagateLight(new ChunkPos(0, 0));
-        p.doLightUpdates();
-
-        return p;
-    }
-
     @Override
     public float getBrightness(Direction direction, boolean shaded) {
         // Brightness gets applied again when rendering to world, and we don't want it twice
@@ -118,7 +84,18 @@ public class MiniatureWorld extends World implements LightSourceView {
 
     @Override
     public LightingProvider getLightingProvider() {
-        return lightingProvider;
+        // light is served by getLightLevel
+        return MiniatureLight.EMPTY_PROVIDER;
+    }
+
+    @Override
+    public int getLightLevel(LightType type, BlockPos pos) {
+        return light.get(type, pos);
+    }
+
+    @Override
+    public int getBaseLightLevel(BlockPos pos, int ambientDarkness) {
+        return light.getBaseLightLevel(pos, ambientDarkness);
     }
 
     @Override
@@ -220,18 +197,6 @@ public class MiniatureWorld extends World implements LightSourceView {
         return null;
     }
 
-    @Override
-    public void forEachLightSource(BiConsumer<BlockPos, BlockState> callback) {
-        blockStates.forEach((pos, bs) -> {
-            if (bs.getLuminance() > 0) callback.accept(pos, bs);
-        });
-    }
-
-    @Override
-    public ChunkSkyLight getChunkSkyLight() {
-        return chunkSkyLight;
-    }
-
     @Override
     public QueryableTickScheduler<Block> getBlockTickScheduler() {
         return null;
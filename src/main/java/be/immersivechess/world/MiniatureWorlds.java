@@ -0,0 +1,70 @@
+package be.immersivechess.world;
+
+import com.google.common.collect.MapMaker;
+import net.minecraft.structure.StructureTemplate;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Miniature worlds shared by all block entities that show the same structure in the same world. Structures are shared
+ * by {@link be.immersivechess.structure.StructureResolver}, so they are compared by identity.
+ * Every {@link #acquire} has to be followed by a {@link #release}, the world is dropped once it is no longer used.
+ */
+public class MiniatureWorlds {
+    private static final Map<World, Map<StructureTemplate, Entry>> WORLDS = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Returns the shared miniature world, which is built when it doesn't exist yet. Building reads registries and block
+     * entity state, so it has to happen on the thread that owns the world.
+     *
+     * @param executor main executor of the world (see {@link be.immersivechess.structure.StructureResolver#getMainExecutor}),
+     *                 or null to build the world on the calling thread
+     */
+    public static synchronized CompletableFuture<MiniatureWorld> acquire(World world, StructureTemplate structure, @Nullable Executor executor) {
+        Map<StructureTemplate, Entry> entries = WORLDS.computeIfAbsent(world, w -> new IdentityHashMap<>());
+        Entry entry = entries.get(structure);
+        if (entry == null) {
+            CompletableFuture<MiniatureWorld> future = executor != null
+                    ? CompletableFuture.supplyAsync(() -> new MiniatureWorld(world, structure), executor)
+                    : CompletableFuture.completedFuture(new MiniatureWorld(world, structure));
+            entry = new Entry(future);
+            entries.put(structure, entry);
+        }
+        entry.references++;
+        return entry.miniWorld;
+    }
+
+    public static synchronized void release(World world, StructureTemplate structure) {
+        Map<StructureTemplate, Entry> entries = WORLDS.get(world);
+        if (entries == null) return;
+
+        Entry entry = entries.get(structure);
+        if (entry == null) return;
+
+        if (--entry.references <= 0)
+            entries.remove(structure);
+        if (entries.isEmpty())
+            WORLDS.remove(world);
+    }
+
+    /**
+     * Number of miniature worlds in use, for all worlds.
+     */
+    public static synchronized int size() {
+        return WORLDS.values().stream().mapToInt(Map::size).sum();
+    }
+
+    private static class Entry {
+        private final CompletableFuture<MiniatureWorld> miniWorld;
+        private int references;
+
+        private Entry(CompletableFuture<MiniatureWorld> miniWorld) {
+            this.miniWorld = miniWorld;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package be.immersivechess.world;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import java.util.function.Consumer;
+
+/**
+ * Redraws the model of a block after the data of its block entity changed. The client collects these during a tick and
+ * rebuilds every affected chunk section once, off the render thread. On the server the listeners are notified right
+ * away, which syncs the block entity to the clients.
+ */
+public class ModelRedraws {
+    private static Consumer<BlockPos> clientScheduler;
+
+    public static void setClientScheduler(Consumer<BlockPos> scheduler) {
+        clientScheduler = scheduler;
+    }
+
+    public static void redraw(World world, BlockPos pos, BlockState state) {
+        if (world.isClient && !(world instanceof MiniatureWorld) && clientScheduler != null) {
+            clientScheduler.accept(pos.toImmutable());
+            return;
+        }
+        world.updateListeners(pos, state, state, Block.NOTIFY_LISTENERS);
+    }
+}
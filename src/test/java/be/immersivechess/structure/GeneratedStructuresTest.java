@@ -0,0 +1,63 @@
+package be.immersivechess.structure;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtHelper;
+import net.minecraft.nbt.NbtIo;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * The default piece structures are shipped from src/main/generated. When this fails, run the runDatagen task to upgrade
+ * them to the current game version.
+ */
+public class GeneratedStructuresTest {
+
+    private static final Path SOURCE_DIRECTORY = Path.of("src/main/structures");
+    private static final Path GENERATED_DIRECTORY = Path.of("src/main/generated/data/immersivechess/structures");
+
+    @BeforeAll
+    public static void bootstrap() {
+        // the data fixer needs the game version and the registries
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    public void generatedStructuresAreUpgradedSources() throws IOException {
+        int currentVersion = StructureUpgrader.getCurrentDataVersion();
+
+        List<Path> sources = listStructures(SOURCE_DIRECTORY);
+        assertFalse(sources.isEmpty(), "No structures found in " + SOURCE_DIRECTORY.toAbsolutePath());
+
+        for (Path source : sources) {
+            Path generated = GENERATED_DIRECTORY.resolve(source.getFileName());
+            NbtCompound generatedNbt = read(generated);
+            assertEquals(currentVersion, NbtHelper.getDataVersion(generatedNbt, -1), "Stale data version in " + generated);
+            assertEquals(StructureUpgrader.upgrade(read(source)), generatedNbt, "Generated structure differs from upgraded source " + source);
+        }
+    }
+
+    private static List<Path> listStructures(Path directory) throws IOException {
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.filter(f -> f.getFileName().toString().endsWith(".nbt")).sorted().toList();
+        }
+    }
+
+    private static NbtCompound read(Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(file)) {
+            return NbtIo.readCompressed(input);
+        }
+    }
+}